@@ -0,0 +1,163 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Blocking facade over IoTClient, for code that prefers handling each device in its own
+// (possibly virtual) thread, instead of using observers. Each call parks the calling thread
+// until the response has been handled by the client thread, or until the timeout expires
+// (no thread is created, nor held, per request). The calls must not be made in the thread
+// that handles the observers' events, if it is the client thread (see IoTClient.setDispatchDirect()).
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTBlockingClient {
+	// Thrown when the device answers with something other than IoTMessage.ResponseOK, or
+	// when the request could not be sent
+	public static final class ResponseException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public final int responseCode;
+
+		ResponseException(int responseCode) {
+			super("responseCode = " + responseCode);
+			this.responseCode = responseCode;
+		}
+	}
+
+	public final IoTClient client;
+	public final long defaultTimeout;
+
+	// The client itself retries the requests before giving up (see IoTClient.DefaultMaximumAttempts),
+	// so defaultTimeout (in ms) is just an upper bound for the calls that do not take a timeout
+	public IoTBlockingClient(IoTClient client, long defaultTimeout) {
+		if (defaultTimeout <= 0)
+			throw new IllegalArgumentException("defaultTimeout <= 0");
+		this.client = client;
+		this.defaultTimeout = defaultTimeout;
+	}
+
+	private static void await(IoTFuture future, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		if (!future.await(TimeUnit.MILLISECONDS.toNanos(timeout)))
+			throw new TimeoutException();
+		final int result = future.result();
+		if (result == IoTFuture.ResultTimeout)
+			throw new TimeoutException();
+		if (result != IoTMessage.ResponseOK)
+			throw new ResponseException(result);
+	}
+
+	public void handshake(IoTDevice device) throws InterruptedException, TimeoutException, ResponseException {
+		handshake(device, defaultTimeout);
+	}
+
+	public void handshake(IoTDevice device, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(device.handshakeAsync(), timeout);
+	}
+
+	public void ping(IoTDevice device) throws InterruptedException, TimeoutException, ResponseException {
+		ping(device, defaultTimeout);
+	}
+
+	public void ping(IoTDevice device, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(device.pingAsync(), timeout);
+	}
+
+	public void execute(IoTInterface ioTInterface, int command) throws InterruptedException, TimeoutException, ResponseException {
+		execute(ioTInterface, command, defaultTimeout);
+	}
+
+	public void execute(IoTInterface ioTInterface, int command, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(ioTInterface.executeAsync(command), timeout);
+	}
+
+	// Requests the current value of the property, which can then be read with its getValue*() methods
+	public void update(IoTProperty property) throws InterruptedException, TimeoutException, ResponseException {
+		update(property, defaultTimeout);
+	}
+
+	public void update(IoTProperty property, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(property.updateValueAsync(), timeout);
+	}
+
+	public boolean readBoolean(IoTProperty property, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		update(property, timeout);
+		return property.getValueBoolean();
+	}
+
+	public int readInt(IoTProperty property, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		update(property, timeout);
+		return property.getValueInt();
+	}
+
+	public long readLong(IoTProperty property, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		update(property, timeout);
+		return property.getValueLong();
+	}
+
+	public double readDouble(IoTProperty property, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		update(property, timeout);
+		return property.getValueDouble();
+	}
+
+	public IoTProperty.Enum readEnum(IoTProperty property, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		update(property, timeout);
+		return property.getValueEnum();
+	}
+
+	public String readString(IoTProperty property, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		update(property, timeout);
+		return property.getValueString();
+	}
+
+	public void writeBoolean(IoTProperty property, boolean value, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(property.setValueBooleanAsync(value), timeout);
+	}
+
+	public void writeInt(IoTProperty property, int value, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(property.setValueIntAsync(value), timeout);
+	}
+
+	public void writeLong(IoTProperty property, long value, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(property.setValueLongAsync(value), timeout);
+	}
+
+	public void writeDouble(IoTProperty property, double value, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(property.setValueDoubleAsync(value), timeout);
+	}
+
+	public void writeEnum(IoTProperty property, IoTProperty.Enum value, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(property.setValueEnumAsync(value), timeout);
+	}
+
+	public void writeString(IoTProperty property, String value, long timeout) throws InterruptedException, TimeoutException, ResponseException {
+		await(property.setValueStringAsync(value), timeout);
+	}
+}
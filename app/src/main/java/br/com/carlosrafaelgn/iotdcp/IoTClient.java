@@ -42,15 +42,36 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 public final class IoTClient {
 	// 2570 = 0x0A0A (at the present date it is not assigned to any services)
 	private static final int IoTPort = 2570;
+	private static final int MaxDiscoveryAddresses = 16;
+	private static final int DiscoveryAddressesTimeout = 60000;
+	private static final int BackgroundScanAttempts = 2;
+	private static final int KeepAliveCheckInterval = 1000;
+	private static final int MaxKeepAlivesPerCheck = 4;
+	private static final int SocketTimeout = 500;
+	private static final int MaxPartitionCount = 64;
+	private static final int MaxPendingPacketsPerPartition = 256;
+	private static final int MaxFreePackets = 64;
+	public static final int DefaultFrameInterval = 16;
 	public static final int DefaultMaximumAttempts = 5;
 	public static final int DefaultTimeoutBeforeNextAttempt = 500;
 	public static final int DefaultReceiveBufferSize = 16 * IoTMessage.MaxPayloadLength;
@@ -71,23 +92,90 @@ public final class IoTClient {
 		void onSetProperty(IoTClient client, IoTDevice device, int responseCode, int userArg);
 	}
 
+	// Optional observer, notified when devices answer SubscribeProperty/UnsubscribeProperty
+	public interface SubscriptionObserver {
+		void onSubscribeProperty(IoTClient client, IoTDevice device, int responseCode, IoTProperty property, boolean subscribed, int userArg);
+	}
+
+	// Optional observer, notified while devices are still being described (onQueryDevice is
+	// only called after the device has been completely described)
+	public interface DiscoveryObserver {
+		// The device has answered QueryDevice, but its interfaces may not have been described
+		// yet (IoTDevice.ioTInterface() returns null for those)
+		void onDeviceFound(IoTClient client, IoTDevice device);
+		// The interface, and all of its properties, have been described and can be used,
+		// even though other interfaces of the same device may not have been described yet
+		void onInterfaceDescribed(IoTClient client, IoTDevice device, IoTInterface ioTInterface);
+	}
+
+	// Optional observer, notified when devices stop answering keepalive pings, and when they
+	// answer again (see setKeepAliveIdleTimeout()), as well as when a known device is replaced
+	// by another one (or by a renamed/changed version of itself) at the same address, in which
+	// case the old instance is reported as absent, before the new one is passed to onQueryDevice()
+	public interface PresenceObserver {
+		void onPresenceChanged(IoTClient client, IoTDevice device, boolean present);
+	}
+
 	private final int maximumAttempts, timeoutBeforeNextAttempt;
 	private Context context;
 	private volatile boolean alive;
-	private boolean scanningDevices;
+	// Number of QueryDevice messages (one per discovery address) still waiting for responses
+	private int pendingScanMessages;
+	private final Object scanSync = new Object();
 	private DatagramSocket socket;
 	private Thread clientThread, senderThread;
 	private Looper senderThreadLooper;
 	private Handler mainThreadHandler, senderThreadHandler;
+	// null means events are handled in the main thread, through mainThreadHandler
+	private volatile IoTDispatcher dispatcher;
+	// Events dispatched, but not handled yet (see setMaximumPendingEvents())
+	private final AtomicInteger pendingEvents = new AtomicInteger();
+	private volatile int maximumPendingEvents, propertyChangeConflationInterval;
+	private volatile long droppedEvents; // Only incremented by the sender thread
 	private final IoTMessage.Cache messageCache;
+	final IoTMessage.NameCache nameCache;
 	private final IoTSentMessage.Cache sentMessageCache;
+	// Shared by the client thread and the partitions, but each device is only handled by
+	// the partition its address belongs to
+	private final ConcurrentHashMap<SocketAddress, IoTDevice> devices = new ConcurrentHashMap<>(16);
+	private final ConcurrentHashMap<SocketAddress, IoTDevice> pendingDevices = new ConcurrentHashMap<>(16);
+	private final HashMap<UUID, IoTDeviceTemplate> templates = new HashMap<>(16);
+	// null when the client thread handles all responses by itself
+	private Partition[] partitions;
+	private final ArrayDeque<Packet> freePackets = new ArrayDeque<>(MaxFreePackets);
 	private Observer observer;
+	private DiscoveryObserver discoveryObserver;
+	private PresenceObserver presenceObserver;
+	private SubscriptionObserver subscriptionObserver;
+	// 0 means devices are never pinged automatically
+	private volatile int keepAliveIdleTimeout;
+	private volatile IoTSessionStore sessionStore;
+	private volatile IoTDiscoveryCache discoveryCache;
+	// Broadcast addresses of all local network interfaces, plus multicast groups, cached for
+	// DiscoveryAddressesTimeout ms (the index of each address is used as an offset to compute
+	// the sequence number of its QueryDevice message)
+	private volatile SocketAddress[] discoveryAddresses;
+	private long discoveryAddressesTimestamp;
+	private final ArrayList<InetAddress> multicastGroups = new ArrayList<>();
+	private Random backgroundScanRandom;
+	private Runnable backgroundScanRunnable;
+	private int backgroundScanMinimumInterval, backgroundScanMaximumInterval, backgroundScanInterval;
 
 	public IoTClient(Context context) throws IOException {
 		this(context, DefaultMaximumAttempts, DefaultTimeoutBeforeNextAttempt, DefaultReceiveBufferSize);
 	}
 
 	public IoTClient(Context context, int maximumAttempts, int timeoutBeforeNextAttempt, int receiveBufferSize) throws IOException {
+		this(context, maximumAttempts, timeoutBeforeNextAttempt, receiveBufferSize, 1);
+	}
+
+	// With partitionCount > 1, the client thread only receives the datagrams, and each one is
+	// handled (decrypted, parsed, matched with the message sent, and dispatched) by one of
+	// partitionCount threads, chosen according to the address of the device, so the work is
+	// spread among several cores, while the responses of each device are still handled in order
+	public IoTClient(Context context, int maximumAttempts, int timeoutBeforeNextAttempt, int receiveBufferSize, int partitionCount) throws IOException {
+		if (partitionCount < 1 || partitionCount > MaxPartitionCount)
+			throw new IllegalArgumentException("1 <= partitionCount <= " + MaxPartitionCount);
 		if (maximumAttempts < 1 || maximumAttempts > 100)
 			throw new IllegalArgumentException("1 <= maximumAttempts <= 100");
 		if (timeoutBeforeNextAttempt < 500 || timeoutBeforeNextAttempt > 1200000)
@@ -100,16 +188,29 @@ public final class IoTClient {
 		alive = true;
 		socket = new DatagramSocket();
 		socket.setBroadcast(true);
-		socket.setSoTimeout(500);
+		socket.setSoTimeout(SocketTimeout);
 		socket.setReceiveBufferSize(receiveBufferSize);
 		messageCache = new IoTMessage.Cache();
+		nameCache = new IoTMessage.NameCache();
 		sentMessageCache = new IoTSentMessage.Cache();
-		mainThreadHandler = new Handler(new Handler.Callback() {
-			@Override
-			public boolean handleMessage(Message msg) {
-				return handleMessageInMainThread(msg);
+		if (Looper.myLooper() != null) {
+			mainThreadHandler = new Handler(new Handler.Callback() {
+				@Override
+				public boolean handleMessage(Message msg) {
+					return handleDispatchedMessage_(msg);
+				}
+			});
+		} else {
+			// There is no main thread to handle the events (in a headless gateway, for example)
+			dispatcher = new IoTDispatcher(this, null, 0);
+		}
+		if (partitionCount > 1) {
+			partitions = new Partition[partitionCount];
+			for (int i = 0; i < partitionCount; i++) {
+				partitions[i] = new Partition();
+				partitions[i].start_(i);
 			}
-		});
+		}
 		clientThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -155,11 +256,156 @@ public final class IoTClient {
 		this.observer = observer;
 	}
 
+	// Must be set before scanning for devices, so sessions are resumed as devices are found
+	public void setSessionStore(IoTSessionStore sessionStore) {
+		this.sessionStore = sessionStore;
+	}
+
+	public IoTSessionStore getSessionStore() {
+		return sessionStore;
+	}
+
+	IoTSessionStore sessionStore() {
+		return sessionStore;
+	}
+
+	// Must be set before scanning for devices, so known devices can be published right away
+	public void setDiscoveryCache(IoTDiscoveryCache discoveryCache) {
+		this.discoveryCache = discoveryCache;
+	}
+
+	public IoTDiscoveryCache getDiscoveryCache() {
+		return discoveryCache;
+	}
+
+	public void setDiscoveryObserver(DiscoveryObserver discoveryObserver) {
+		this.discoveryObserver = discoveryObserver;
+	}
+
+	public void setPresenceObserver(PresenceObserver presenceObserver) {
+		this.presenceObserver = presenceObserver;
+	}
+
+	public void setSubscriptionObserver(SubscriptionObserver subscriptionObserver) {
+		this.subscriptionObserver = subscriptionObserver;
+	}
+
+	// Devices that have not sent any valid response for idleTimeout ms (plus up to 25% of
+	// jitter, so devices are not all pinged at the same time) are pinged automatically, and
+	// considered absent if they do not answer (0 disables keepalive pings)
+	public void setKeepAliveIdleTimeout(int idleTimeout) {
+		if (idleTimeout != 0 && idleTimeout < 1000)
+			throw new IllegalArgumentException("idleTimeout == 0 || idleTimeout >= 1000");
+		keepAliveIdleTimeout = idleTimeout;
+	}
+
+	public int getKeepAliveIdleTimeout() {
+		return keepAliveIdleTimeout;
+	}
+
+	// The observers are notified in the main thread (the thread that created this client), and
+	// this is the default behavior (background scans only work if there is a main thread)
+	public void setDispatchMainThread() {
+		if (mainThreadHandler == null)
+			throw new IllegalStateException("mainThreadHandler == null");
+		dispatcher = null;
+	}
+
+	// The observers are notified directly in the client threads, as soon as the events happen
+	// (this has the lowest latency, but observers must return quickly, and must not block)
+	public void setDispatchDirect() {
+		dispatcher = new IoTDispatcher(this, null, 0);
+	}
+
+	// The observers are notified by the given executor (events of the same device may be
+	// handled concurrently, and out of order, if the executor uses more than one thread)
+	public void setDispatchExecutor(Executor executor) {
+		setDispatchExecutor(executor, 0);
+	}
+
+	// The devices are split among stripeCount stripes, and the events of each stripe are
+	// handled one after another by the given executor, so the events of the same device are
+	// always handled in order, while different stripes can be handled concurrently
+	public void setDispatchExecutor(Executor executor, int stripeCount) {
+		if (executor == null)
+			throw new NullPointerException("executor == null");
+		if (stripeCount < 0)
+			throw new IllegalArgumentException("stripeCount < 0");
+		dispatcher = new IoTDispatcher(this, executor, stripeCount);
+	}
+
+	// Instead of notifying the property observers once for every ServerMessagePropertyChange,
+	// the new values are stored as soon as they arrive, and the observers are notified in
+	// batches, at most once every frameInterval ms, only once per property, no matter how many
+	// times it has changed in the meantime (0 disables conflation)
+	public void setPropertyChangeConflation(int frameInterval) {
+		if (frameInterval < 0)
+			throw new IllegalArgumentException("frameInterval < 0");
+		propertyChangeConflationInterval = frameInterval;
+	}
+
+	public int getPropertyChangeConflation() {
+		return propertyChangeConflationInterval;
+	}
+
+	// Limits the number of events waiting to be handled by the observers (0 means no limit).
+	// When the limit is reached:
+	// - onMessageSent() notifications are dropped (see getDroppedEventCount())
+	// - property changes are conflated, as in setPropertyChangeConflation(), even if
+	// conflation has been disabled (using DefaultFrameInterval)
+	// - all other events are still delivered, because they carry the results of requests
+	public void setMaximumPendingEvents(int maximumPendingEvents) {
+		if (maximumPendingEvents < 0)
+			throw new IllegalArgumentException("maximumPendingEvents < 0");
+		this.maximumPendingEvents = maximumPendingEvents;
+	}
+
+	public int getMaximumPendingEvents() {
+		return maximumPendingEvents;
+	}
+
+	public long getDroppedEventCount() {
+		return droppedEvents;
+	}
+
+	@MixedThreads
+	private boolean isEventQueueFull() {
+		final int maximumPendingEvents = this.maximumPendingEvents;
+		return (maximumPendingEvents > 0 && pendingEvents.get() >= maximumPendingEvents);
+	}
+
+	@MixedThreads
+	private void dispatch_(Message msg) {
+		if (msg.what == IoTMessage.MessageSent && isEventQueueFull()) {
+			droppedEvents++;
+			msg.recycle();
+			return;
+		}
+		pendingEvents.incrementAndGet();
+		final IoTDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null) {
+			dispatcher.dispatch_(msg);
+			return;
+		}
+		final Handler h = mainThreadHandler;
+		if (h != null) {
+			h.sendMessage(msg);
+		} else {
+			pendingEvents.decrementAndGet();
+			msg.recycle();
+		}
+	}
+
+	public IoTScene createScene() {
+		return new IoTScene(this);
+	}
+
 	public boolean isWaitingForResponses() {
 		return sentMessageCache.isWaitingForResponses();
 	}
 
 	public void destroy() {
+		stopBackgroundScans();
 		alive = false;
 		if (socket != null) {
 			try {
@@ -182,6 +428,11 @@ public final class IoTClient {
 			}
 			clientThread = null;
 		}
+		if (partitions != null) {
+			for (Partition partition : partitions)
+				partition.stop_();
+			partitions = null;
+		}
 		if (senderThread != null) {
 			senderThread.interrupt();
 			try {
@@ -195,9 +446,15 @@ public final class IoTClient {
 		senderThreadHandler = null;
 		context = null;
 		observer = null;
+		discoveryObserver = null;
+		presenceObserver = null;
+		subscriptionObserver = null;
 	}
 
-	private boolean handleMessageInMainThread(Message msg) {
+	// Called in the main thread, unless another dispatcher has been chosen
+	@MixedThreads
+	boolean handleDispatchedMessage_(Message msg) {
+		pendingEvents.decrementAndGet();
 		if (!alive)
 			return true;
 		switch (msg.what) {
@@ -213,9 +470,36 @@ public final class IoTClient {
 			if (observer != null && ((msg.obj instanceof IoTDevice) || msg.obj == null))
 				observer.onMessageSent(this, (IoTDevice)msg.obj, msg.arg1, msg.arg2);
 			break;
+		case IoTMessage.MessageDeviceFound:
+			if (discoveryObserver != null && (msg.obj instanceof IoTDevice))
+				discoveryObserver.onDeviceFound(this, (IoTDevice)msg.obj);
+			break;
+		case IoTMessage.MessageInterfaceDescribed:
+			if (discoveryObserver != null && (msg.obj instanceof IoTInterface)) {
+				final IoTInterface ioTInterface = (IoTInterface)msg.obj;
+				discoveryObserver.onInterfaceDescribed(this, ioTInterface.device, ioTInterface);
+			}
+			break;
+		case IoTMessage.MessagePresenceChanged:
+			if (presenceObserver != null && (msg.obj instanceof IoTDevice))
+				presenceObserver.onPresenceChanged(this, (IoTDevice)msg.obj, msg.arg1 != 0);
+			break;
+		case IoTMessage.MessageSceneFinished:
+			if (msg.obj instanceof IoTScene)
+				((IoTScene)msg.obj).finished_();
+			break;
 		case IoTMessage.MessageQueryDevice:
-			if (msg.obj == null)
-				scanningDevices = false;
+			if (msg.obj == null) {
+				// The scan is only over after the QueryDevice messages sent to all
+				// discovery addresses have timed out
+				synchronized (scanSync) {
+					if (pendingScanMessages <= 0 || --pendingScanMessages > 0)
+						break;
+				}
+			} else if (backgroundScanRunnable != null) {
+				// Something new has been found, so scan more frequently again
+				backgroundScanInterval = backgroundScanMinimumInterval;
+			}
 			if (observer != null && ((msg.obj instanceof IoTDevice) || msg.obj == null))
 				observer.onQueryDevice(this, (IoTDevice)msg.obj);
 			break;
@@ -227,7 +511,7 @@ public final class IoTClient {
 					final int responseCode = message.responseCode;
 					final byte[] name = message.password;
 					messageCache.release_(message);
-					device.name = ((name == null || name.length == 0) ? "IoT" : new String(name));
+					device.name = ((name == null || name.length == 0) ? "IoT" : new String(name, IoTMessage.UTF8));
 					observer.onChangeName(this, device, responseCode, device.name, msg.arg2);
 				} else if (msg.obj instanceof IoTDevice) {
 					observer.onChangeName(this, (IoTDevice)msg.obj, msg.arg1, null, msg.arg2);
@@ -280,9 +564,10 @@ public final class IoTClient {
 				final int command = (msg.arg1 >>> 8);
 				final byte[] payload = message.payload;
 				final int payloadLength = message.payloadLength;
+				final boolean sceneMember = message.sceneMember;
 				messageCache.release_(message);
 				device.handleExecute(responseCode, interfaceIndex, command, payload, payloadLength, msg.arg2);
-				if (observer != null)
+				if (observer != null && !sceneMember)
 					observer.onExecute(this, device, responseCode, interfaceIndex, command, msg.arg2);
 			}
 			break;
@@ -295,9 +580,16 @@ public final class IoTClient {
 				final int payloadLength = message.payloadLength;
 				messageCache.release_(message);
 				if (responseCode == IoTMessage.ResponseOK)
-					device.handleProperty(payload, payloadLength, msg.arg2);
+					device.notifyPropertyChanges(payload, payloadLength, msg.arg2);
 				if (observer != null)
 					observer.onGetProperty(this, device, responseCode, msg.arg2);
+			} else if (msg.obj instanceof IoTSentMessage.Transfer) {
+				// All the chunks have already been merged into the property's value
+				final IoTProperty property = ((IoTSentMessage.Transfer)msg.obj).property;
+				if (msg.arg1 == IoTMessage.ResponseOK)
+					property.notifyPropertyChange(msg.arg2);
+				if (observer != null)
+					observer.onGetProperty(this, property.ioTInterface.device, msg.arg1, msg.arg2);
 			}
 			break;
 		case IoTMessage.MessageSetProperty:
@@ -307,11 +599,43 @@ public final class IoTClient {
 				final int responseCode = message.responseCode;
 				final byte[] payload = message.payload;
 				final int payloadLength = message.payloadLength;
+				final boolean sceneMember = message.sceneMember;
 				messageCache.release_(message);
 				if (responseCode == IoTMessage.ResponseOK)
-					device.handleProperty(payload, payloadLength, msg.arg2);
-				if (observer != null)
+					device.notifyPropertyChanges(payload, payloadLength, msg.arg2);
+				if (observer != null && !sceneMember)
 					observer.onSetProperty(this, device, responseCode, msg.arg2);
+			} else if (msg.obj instanceof IoTSentMessage.Transfer) {
+				if (observer != null)
+					observer.onSetProperty(this, ((IoTSentMessage.Transfer)msg.obj).property.ioTInterface.device, msg.arg1, msg.arg2);
+			}
+			break;
+		case IoTMessage.MessageSubscribeProperty:
+		case IoTMessage.MessageUnsubscribeProperty:
+			if (subscriptionObserver != null && (msg.obj instanceof IoTProperty)) {
+				final IoTProperty property = (IoTProperty)msg.obj;
+				subscriptionObserver.onSubscribeProperty(this, property.ioTInterface.device, msg.arg1, property, msg.what == IoTMessage.MessageSubscribeProperty, msg.arg2);
+			}
+			break;
+		case IoTMessage.ServerMessagePropertyChange:
+			if (msg.obj instanceof IoTMessage) {
+				final IoTMessage message = (IoTMessage)msg.obj;
+				final IoTDevice device = message.device;
+				final byte[] payload = message.payload;
+				final int payloadLength = message.payloadLength;
+				messageCache.release_(message);
+				// The values have already been stored by the client thread, and property
+				// observers are notified just as if the values had been requested
+				device.notifyPropertyChanges(payload, payloadLength, 0);
+			}
+			break;
+		case IoTMessage.MessagePropertyChanges:
+			if (msg.obj instanceof IoTProperty[]) {
+				// The values have already been stored by the client thread
+				final IoTProperty[] properties = (IoTProperty[])msg.obj;
+				for (IoTProperty property : properties)
+					property.notifyPropertyChange(0);
+				IoTDevice.notifyPropertiesChange(properties, 0);
 			}
 			break;
 		}
@@ -319,7 +643,7 @@ public final class IoTClient {
 	}
 
 	@SecondaryThread
-	private IoTSentMessage[] checkPendingAttempts_(HashMap<SocketAddress, IoTDevice> pendingDevices, IoTSentMessage[] sentMessagesLocalCopy) {
+	private IoTSentMessage[] checkPendingAttempts_(Map<SocketAddress, IoTDevice> pendingDevices, IoTSentMessage[] sentMessagesLocalCopy) {
 		// Check if there are pending messages that should be resent, or just discarded
 		sentMessagesLocalCopy = sentMessageCache.copySentMessages_(sentMessagesLocalCopy);
 
@@ -334,6 +658,10 @@ public final class IoTClient {
 				case IoTMessage.MessageExecute:
 				case IoTMessage.MessageGetProperty:
 				case IoTMessage.MessageSetProperty:
+				case IoTMessage.MessageSetPropertyRange:
+				case IoTMessage.MessageGetPropertyRange:
+				case IoTMessage.MessageSubscribeProperty:
+				case IoTMessage.MessageUnsubscribeProperty:
 					maximumAttempts = this.maximumAttempts;
 					break;
 				default:
@@ -343,41 +671,82 @@ public final class IoTClient {
 				}
 
 				if (sentMessage.attempts >= maximumAttempts) {
+					// The response may have just arrived, in which case it owns the message
+					if (!sentMessageCache.claim_(sentMessage))
+						continue;
 					// Copy whatever could be useful, and release the message before proceeding
 					final SocketAddress socketAddress = sentMessage.socketAddress;
 					final IoTDevice device = sentMessage.device;
 					final int messageType = sentMessage.messageType;
 					final int userArg = sentMessage.userArg;
-					sentMessageCache.unmarkAsSentMessageAndRelease_(sentMessage);
+					final IoTSentMessage.Transfer transfer = sentMessage.transfer;
+					final boolean keepAlive = sentMessage.keepAlive;
+					final IoTScene scene = sentMessage.scene;
+					final int sceneMember = sentMessage.sceneMember;
+					final IoTFuture future = sentMessage.future;
+					sentMessageCache.release_(sentMessage);
+
+					// Transfers complete their futures after the last chunk
+					if (future != null)
+						future.complete_(IoTFuture.ResultTimeout);
 
 					// Now that we are giving up on this message, try to send the next one
 					if (device != null)
 						sendNextMessageInDeviceQueue_(device);
 
+					if (scene != null) {
+						// Members of a scene are only reported with the entire scene
+						if (scene.memberFinished_(sceneMember, IoTScene.ResultTimeout))
+							dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageSceneFinished, scene));
+						continue;
+					}
+
 					switch (messageType) {
 					case IoTMessage.MessageQueryDevice:
-						mainThreadHandler.sendEmptyMessage(IoTMessage.MessageQueryDevice);
+						dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageQueryDevice));
 						break;
 
 					case IoTMessage.MessageDescribeInterface:
 						pendingDevices.remove(socketAddress);
 						break;
 
+					case IoTMessage.MessagePing:
+						if (keepAlive) {
+							device.keepAlivePending = false;
+							if (device.lost_())
+								dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessagePresenceChanged, 0, 0, device));
+							break;
+						}
+						// Fall through
 					case IoTMessage.MessageChangeName:
 					case IoTMessage.MessageChangePassword:
 					case IoTMessage.MessageHandshake:
-					case IoTMessage.MessagePing:
 					case IoTMessage.MessageReset:
 					case IoTMessage.MessageGoodBye:
 					case IoTMessage.MessageExecute:
 					case IoTMessage.MessageGetProperty:
+					case IoTMessage.MessageGetPropertyRange:
+					case IoTMessage.MessageSetPropertyRange:
+						if (transfer != null) {
+							// The entire transfer is reported only once, after all of its chunks
+							if (transfer.chunkFinished_(IoTMessage.ResponseOK, true))
+								dispatch_(transferFinishedMessage_(transfer, device));
+							break;
+						}
+						dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageTimeout, messageType, userArg, device));
+						break;
+
 					case IoTMessage.MessageSetProperty:
-						mainThreadHandler.sendMessage(Message.obtain(mainThreadHandler, IoTMessage.MessageTimeout, messageType, userArg, device));
+					case IoTMessage.MessageSubscribeProperty:
+					case IoTMessage.MessageUnsubscribeProperty:
+						dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageTimeout, messageType, userArg, device));
 						break;
 					}
 				} else {
-					// Try again...
-					sendMessage_(sentMessage);
+					// Try again (unless the response has just arrived)...
+					final int generation = sentMessageCache.prepareRetry_(sentMessage, now);
+					if (generation >= 0)
+						senderThreadHandler.sendMessage(Message.obtain(senderThreadHandler, 0, generation, 1, sentMessage));
 				}
 			}
 		}
@@ -387,163 +756,649 @@ public final class IoTClient {
 		return sentMessagesLocalCopy;
 	}
 
+	// The values carried by the response are stored only here, in the order the responses
+	// arrive, so they are already available to whoever is waiting for the future, and the
+	// observers, notified later, never store an older value over a newer one
+	@SecondaryThread
+	private static void storeResponse_(IoTSentMessage sentMessage, IoTDevice device, IoTMessage message) {
+		if (message.responseCode == IoTMessage.ResponseOK) {
+			if (sentMessage.messageType == IoTMessage.MessageExecute)
+				device.storeExecuteResult_(sentMessage.executedInterfaceIndex, sentMessage.executedCommand, message.payload, message.payloadLength);
+			else
+				device.storePropertyChange_(message.payload, message.payloadLength, null);
+		}
+		if (sentMessage.future != null)
+			sentMessage.future.complete_(message.responseCode);
+	}
+
+	@SecondaryThread
+	private Message transferFinishedMessage_(IoTSentMessage.Transfer transfer, IoTDevice device) {
+		return (transfer.timedOut ?
+			Message.obtain(mainThreadHandler, IoTMessage.MessageTimeout, transfer.messageType, transfer.userArg, device) :
+			Message.obtain(mainThreadHandler, transfer.messageType, transfer.responseCode, transfer.userArg, transfer));
+	}
+
+	@SecondaryThread
+	private boolean splitTooLargeMessage_(IoTDevice device, IoTSentMessage sentMessage) {
+		// The device could not handle the request/response, so try again, sending smaller
+		// messages (the new messages will be sent after sentMessage is released)
+		final IoTProperty[] properties = sentMessage.properties();
+		if (properties != null) {
+			// Transactions must not be split, as they must be atomic
+			if (sentMessage.messageType != IoTMessage.MessageGetProperty)
+				return false;
+			for (IoTProperty property : properties)
+				getProperty(property, sentMessage.userArg);
+			return true;
+		}
+		final IoTProperty property = device.property_(sentMessage.payload0, sentMessage.payload1);
+		if (property == null)
+			return false;
+		if (sentMessage.messageType == IoTMessage.MessageGetProperty) {
+			if (!device.isGetPropertyRangeSupported())
+				return false;
+			getPropertyInChunks(property, sentMessage.userArg, null);
+		} else {
+			final IoTProperty.Buffer value = property.valueBuffer();
+			synchronized (value) {
+				if (value.length <= IoTMessage.MaxChunkLength)
+					return false;
+			}
+			if (!device.isSetPropertyRangeSupported())
+				return false;
+			setPropertyInChunks(property, value, sentMessage.userArg, null);
+		}
+		return true;
+	}
+
 	@SecondaryThread
-	@SuppressWarnings("ConstantConditions")
 	private void runClientThread_() {
-		final byte[] buffer = IoTMessage.allocateMaximumResponseBuffer_();
-		final DatagramPacket recvPacket = new DatagramPacket(buffer, buffer.length);
-		final SocketAddress broadcastAddress = getBroadcastAddress();
-		final HashMap<SocketAddress, IoTDevice> devices = new HashMap<>(16);
-		final HashMap<SocketAddress, IoTDevice> pendingDevices = new HashMap<>(16);
-		final IoTSentMessage placeholder = sentMessageCache.placeholder_(broadcastAddress);
+		final DatagramPacket recvPacket = new DatagramPacket(new byte[0], 0);
+		final Partition[] partitions = this.partitions;
+		// Without partitions, this thread handles all responses by itself
+		final Partition inlinePartition = ((partitions == null) ? new Partition() : null);
 		IoTSentMessage[] sentMessagesLocalCopy = new IoTSentMessage[16];
+		Random keepAliveRandom = null;
+		int lastKeepAliveCheck = (int)SystemClock.elapsedRealtime(), socketTimeout = SocketTimeout;
+		Packet packet = null;
 
 		while (alive) {
-			IoTMessage message = null;
-
-			int messageType = IoTMessage.MessageException, userArg = 0;
-
 			try {
 				sentMessagesLocalCopy = checkPendingAttempts_(pendingDevices, sentMessagesLocalCopy);
 
-				recvPacket.setData(buffer);
+				final int keepAliveIdleTimeout = this.keepAliveIdleTimeout;
+				if (keepAliveIdleTimeout > 0 && ((int)SystemClock.elapsedRealtime() - lastKeepAliveCheck) >= KeepAliveCheckInterval) {
+					if (keepAliveRandom == null)
+						keepAliveRandom = new Random();
+					lastKeepAliveCheck = checkKeepAlive_(devices, keepAliveIdleTimeout, keepAliveRandom);
+				}
+
+				if (inlinePartition != null) {
+					// Do not wait longer than the end of the current frame
+					final int remaining = inlinePartition.flushConflatedProperties_();
+					final int newSocketTimeout = ((remaining < 0 || remaining >= SocketTimeout) ? SocketTimeout : remaining);
+					if (socketTimeout != newSocketTimeout)
+						socket.setSoTimeout(socketTimeout = newSocketTimeout);
+				}
+
+				if (packet == null)
+					packet = takePacket_();
+				recvPacket.setData(packet.buffer);
 				socket.receive(recvPacket);
 
 				if (((InetSocketAddress)recvPacket.getSocketAddress()).getAddress().getHostAddress().equals("192.168.1.4"))
 					continue;
 
-				message = messageCache.parseResponse_(recvPacket.getData(), recvPacket.getLength());
+				packet.socketAddress = recvPacket.getSocketAddress();
+				packet.length = recvPacket.getLength();
+				if (inlinePartition != null) {
+					handlePacket_(inlinePartition, packet.buffer, packet.length, packet.socketAddress);
+				} else {
+					// Responses from the same device always go to the same partition, so they
+					// are handled in order
+					partitions[(packet.socketAddress.hashCode() & 0x7FFFFFFF) % partitions.length].enqueue_(packet);
+					packet = null;
+				}
+			} catch (SocketTimeoutException ex) {
+				// Just ignore, we will try again later
+			} catch (Throwable ex) {
+				dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageException, IoTMessage.MessageException, 0, ex));
+			}
+		}
+	}
 
-				if (!alive || message == null)
-					continue;
+	@SecondaryThread
+	@SuppressWarnings("ConstantConditions")
+	private void handlePacket_(Partition partition, byte[] buffer, int length, SocketAddress socketAddress) {
+		IoTMessage message = null;
 
-				final SocketAddress socketAddress = recvPacket.getSocketAddress();
-				final IoTSentMessage sentMessage;
-				placeholder.fillPlaceholder_((message.messageType == IoTMessage.MessageQueryDevice) ? broadcastAddress : socketAddress, message.messageType, message.sequenceNumber, message.payload);
+		int messageType = IoTMessage.MessageException, userArg = 0;
 
-				sentMessage = sentMessageCache.getActualSentMessage_(placeholder);
+		try {
+			final boolean encrypted = (length > 1 && (buffer[1] & IoTMessage.MessageFlagEncrypted) != 0);
+			if (encrypted) {
+				final IoTDevice device = knownDevice_(devices, pendingDevices, socketAddress);
+				final IoTSession session = ((device == null) ? null : device.session);
+				if (session == null || (length = IoTMessage.Cache.decryptResponse_(session, buffer, length)) < 0)
+					return;
+			}
 
-				if (sentMessage == null)
-					continue;
+			message = messageCache.parseResponse_(buffer, length);
 
-				IoTDevice device = null;
-				Message messageToSendToMainThread = null;
+			if (!alive || message == null)
+				return;
 
-				try {
+			if (!encrypted &&
+				message.responseCode == IoTMessage.ResponseOK &&
+				message.messageType != IoTMessage.MessageQueryDevice &&
+				message.messageType != IoTMessage.MessageHandshake) {
+				// Once a session has been established, successful responses must be
+				// authenticated (errors are accepted, so we can tell when the device
+				// has lost the session, after being reset, for example)
+				final IoTDevice device = knownDevice_(devices, pendingDevices, socketAddress);
+				if (device != null && device.session != null)
+					return;
+			}
+
+			if (message.messageType == IoTMessage.ServerMessagePropertyChange) {
+				// Unsolicited message, sent by devices when subscribed properties change
+				final IoTDevice device = knownDevice_(devices, pendingDevices, socketAddress);
+				if (device != null &&
+					message.clientId == device.clientId &&
+					message.responseCode == IoTMessage.ResponseOK &&
+					device.isNewPropertyChange_(message.sequenceNumber)) {
+					seen_(device);
+					if (propertyChangeConflationInterval > 0 || isEventQueueFull()) {
+						device.storePropertyChange_(message.payload, message.payloadLength, partition.conflatedProperties);
+						return;
+					}
+					device.storePropertyChange_(message.payload, message.payloadLength, null);
+					message.device = device;
+					dispatch_(Message.obtain(mainThreadHandler, IoTMessage.ServerMessagePropertyChange, message));
+					message = null; // Do not release this message here
+				}
+				return;
+			}
+
+			final IoTSentMessage sentMessage;
+			if (message.messageType == IoTMessage.MessageQueryDevice) {
+				// Responses to QueryDevice come from the devices, but the messages were sent
+				// to one of the discovery addresses, identified by the sequence number
+				final SocketAddress[] discoveryAddresses = this.discoveryAddresses;
+				final int discoveryAddressIndex = IoTMessage.MaximumSequenceNumber - message.sequenceNumber;
+				if (discoveryAddresses == null || discoveryAddressIndex < 0 || discoveryAddressIndex >= discoveryAddresses.length)
+					return;
+				partition.placeholder.fillPlaceholder_(discoveryAddresses[discoveryAddressIndex], message.messageType, message.sequenceNumber, message.payload);
+			} else {
+				partition.placeholder.fillPlaceholder_(socketAddress, message.messageType, message.sequenceNumber, message.payload);
+			}
+
+			sentMessage = sentMessageCache.claimActualSentMessage_(partition.placeholder);
+
+			if (sentMessage == null)
+				return;
+
+			// Only responses to messages actually sent prove the device is still there
+			final IoTDevice seenDevice = knownDevice_(devices, pendingDevices, socketAddress);
+			if (seenDevice != null)
+				seen_(seenDevice);
+
+			IoTDevice device = null;
+			Message messageToSendToMainThread = null;
+			IoTScene finishedScene = null;
+
+			try {
+				// The message type is the same (the placeholder matched), and QueryDevice
+				// messages are not claimed, so their fields must not be used here
+				messageType = message.messageType;
+				if (messageType != IoTMessage.MessageQueryDevice)
 					userArg = sentMessage.userArg;
 
-					switch (messageType = sentMessage.messageType) {
-					case IoTMessage.MessageQueryDevice:
-						// A new device has arrived
-						if (devices.containsKey(socketAddress) || pendingDevices.containsKey(socketAddress))
+				switch (messageType) {
+				case IoTMessage.MessageQueryDevice:
+					// A new device has arrived
+					if (pendingDevices.containsKey(socketAddress))
+						break;
+					// We must not use device here, because that would give a different meaning
+					// to device in the finally block at the end of this try block
+					IoTDevice newDevice = message.parseQueryDevice_(this, socketAddress);
+					final int prefixLength;
+					if (newDevice == null || (prefixLength = IoTDiscoveryCache.queryDevicePrefixLength(message.payload, message.payloadLength)) < 0)
+						break;
+					final IoTDevice knownDevice = devices.get(socketAddress);
+					if (knownDevice != null) {
+						// Known devices are only published again if they have changed
+						if (knownDevice.matchesQueryDevice_(newDevice, message.payload, message.payloadLength))
+							break;
+						// The old instance is replaced by the new one, and will no longer be used
+						devices.remove(socketAddress);
+						if (knownDevice.lost_())
+							dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessagePresenceChanged, 0, 0, knownDevice));
+					}
+					// Devices with the same description as another device found before are
+					// filled in from it, otherwise, try the discovery cache
+					final IoTDeviceTemplate template;
+					synchronized (templates) {
+						template = IoTDeviceTemplate.find_(templates, newDevice, message.payload, 0, prefixLength);
+					}
+					final IoTDiscoveryCache discoveryCache = ((template == null) ? this.discoveryCache : null);
+					if (template != null || discoveryCache != null) {
+						if ((template != null) ? template.instantiate_(newDevice) : discoveryCache.load_(nameCache, newDevice, message.payload, message.payloadLength)) {
+							// This device is already known and is ready to be used!
+							if (template == null)
+								deviceDescribed_(templates, newDevice, false);
+							newDevice.resumeSession_();
+							devices.put(socketAddress, newDevice);
+							dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageDeviceFound, newDevice));
+							messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageQueryDevice, newDevice);
 							break;
-						// We must not use device here, because that would give a different meaning
-						// to device in the finally block at the end of this try block
-						final IoTDevice newDevice = message.parseQueryDevice_(this, socketAddress);
-						if (newDevice == null)
+						}
+						// Start over, as the device may have been partially filled in
+						if ((newDevice = message.parseQueryDevice_(this, socketAddress)) == null)
 							break;
-						pendingDevices.put(socketAddress, newDevice);
-						newDevice.describeInterfaces_();
+					}
+					newDevice.recordDiscovery_(IoTMessage.MessageQueryDevice, message.payload, prefixLength);
+					pendingDevices.put(socketAddress, newDevice);
+					newDevice.describeInterfaces_();
+					dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageDeviceFound, newDevice));
+					break;
+
+				default:
+					device = sentMessage.device;
+					if (device == null)
 						break;
 
-					default:
-						device = sentMessage.device;
-						if (device == null)
-							break;
+					// A device that has forgotten a session resumed from the session store,
+					// or that has been reset while there were subscribed properties, needs a
+					// new handshake
+					if (message.responseCode == IoTMessage.ResponseUnknownClient &&
+						device.clientId != IoTMessage.InvalidClientId &&
+						device.handleUnknownClient_())
+						handshake(device, 0);
 
-						switch (sentMessage.messageType) {
-						case IoTMessage.MessageDescribeInterface:
-							final IoTInterface ioTInterface = message.parseDescribeInterface_(device);
-							if (ioTInterface == null ||
-								ioTInterface.index < 0 ||
-								ioTInterface.index >= device.ioTInterfaceCount())
-								break;
-							device.ioTInterfaceDiscovered_(ioTInterface);
-							if (device.isComplete_()) {
-								// This device is ready to be used!
-								pendingDevices.remove(socketAddress);
-								devices.put(socketAddress, device);
-								messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageQueryDevice, device);
-							}
+					switch (sentMessage.messageType) {
+					case IoTMessage.MessageDescribeInterface:
+						final IoTInterface ioTInterface = message.parseDescribeInterface_(device);
+						if (ioTInterface == null ||
+							ioTInterface.index < 0 ||
+							ioTInterface.index >= device.ioTInterfaceCount())
 							break;
-
-						case IoTMessage.MessageDescribeEnum:
-							device.handleDescribeEnum_(message.responseCode, message.payload, message.payloadLength);
-							if (device.isComplete_()) {
-								// This device is ready to be used!
-								pendingDevices.remove(socketAddress);
-								devices.put(socketAddress, device);
-								messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageQueryDevice, device);
-							}
+						if (!device.ioTInterfaceDiscovered_(ioTInterface, true))
 							break;
+						device.recordDiscovery_(IoTMessage.MessageDescribeInterface, message.payload, message.payloadLength);
+						// Interfaces without enums to be described can be used right away
+						if (ioTInterface.isComplete_())
+							dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageInterfaceDescribed, ioTInterface));
+						if (device.isComplete_()) {
+							// This device is ready to be used!
+							deviceDescribed_(templates, device, true);
+							device.resumeSession_();
+							pendingDevices.remove(socketAddress);
+							devices.put(socketAddress, device);
+							messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageQueryDevice, device);
+						}
+						break;
 
-						case IoTMessage.MessageChangeName:
-							message.device = device;
-							message.password = sentMessage.password;
-							messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageChangeName, 0, sentMessage.userArg, message);
-							message = null; // Do not release this message here
-							break;
+					case IoTMessage.MessageDescribeEnum:
+						final IoTInterface describedIoTInterface = device.handleDescribeEnum_(message.responseCode, message.payload, message.payloadLength);
+						if (describedIoTInterface != null)
+							dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageInterfaceDescribed, describedIoTInterface));
+						if (message.responseCode == IoTMessage.ResponseOK)
+							device.recordDiscovery_(IoTMessage.MessageDescribeEnum, message.payload, message.payloadLength);
+						if (device.isComplete_()) {
+							// This device is ready to be used!
+							deviceDescribed_(templates, device, true);
+							device.resumeSession_();
+							pendingDevices.remove(socketAddress);
+							devices.put(socketAddress, device);
+							messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageQueryDevice, device);
+						}
+						break;
 
-						case IoTMessage.MessageChangePassword:
-							message.device = device;
-							message.password = sentMessage.password;
-							messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageChangePassword, 0, sentMessage.userArg, message);
-							message = null; // Do not release this message here
-							break;
+					case IoTMessage.MessageChangeName:
+						message.device = device;
+						message.password = sentMessage.password;
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageChangeName, 0, sentMessage.userArg, message);
+						message = null; // Do not release this message here
+						break;
 
-						case IoTMessage.MessageHandshake:
-							device.sequenceNumber = 0;
-							device.clientId = message.parseHandshake_();
-							messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageHandshake, message.responseCode, sentMessage.userArg, device);
-							break;
+					case IoTMessage.MessageChangePassword:
+						message.device = device;
+						message.password = sentMessage.password;
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageChangePassword, 0, sentMessage.userArg, message);
+						message = null; // Do not release this message here
+						break;
+
+					case IoTMessage.MessageHandshake:
+						device.sequenceNumber = 0;
+						device.clientId = message.parseHandshake_();
+						device.session = message.parseHandshakeSession_(device, sentMessage.pendingSession);
+						int handshakeResponseCode = message.responseCode;
+						if (device.session == null && device.isEncryptionRequired() && device.clientId != IoTMessage.InvalidClientId) {
+							// The device accepted the handshake, but did not send its nonce, so
+							// no session could be established: this is a failure, otherwise the
+							// password would be sent in clear text from now on
+							device.clientId = IoTMessage.InvalidClientId;
+							handshakeResponseCode = IoTMessage.ResponseInvalidPayload;
+						}
+						device.handleHandshake_();
+						if (sentMessage.future != null)
+							sentMessage.future.complete_(handshakeResponseCode);
+						// The subscription messages will be sent right after this message is released
+						if (device.clientId != IoTMessage.InvalidClientId)
+							device.resubscribeProperties_();
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageHandshake, handshakeResponseCode, sentMessage.userArg, device);
+						break;
 
-						case IoTMessage.MessagePing:
-						case IoTMessage.MessageReset:
-						case IoTMessage.MessageGoodBye:
-							messageToSendToMainThread = Message.obtain(mainThreadHandler, sentMessage.messageType, message.responseCode, sentMessage.userArg, device);
+					case IoTMessage.MessagePing:
+						if (sentMessage.keepAlive) {
+							device.keepAlivePending = false;
 							break;
+						}
+						if (sentMessage.future != null)
+							sentMessage.future.complete_(message.responseCode);
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, sentMessage.messageType, message.responseCode, sentMessage.userArg, device);
+						break;
+
+					case IoTMessage.MessageGoodBye:
+						if (message.responseCode == IoTMessage.ResponseOK && sessionStore != null)
+							sessionStore.remove_(device);
+						// Fall through
+					case IoTMessage.MessageReset:
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, sentMessage.messageType, message.responseCode, sentMessage.userArg, device);
+						break;
+
+					case IoTMessage.MessageExecute:
+						message.device = device;
+						storeResponse_(sentMessage, device, message);
+						if (sentMessage.scene != null) {
+							message.sceneMember = true;
+							if (sentMessage.scene.memberFinished_(sentMessage.sceneMember, message.responseCode))
+								finishedScene = sentMessage.scene;
+						}
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageExecute, sentMessage.executedInterfaceIndex | (sentMessage.executedCommand << 8), sentMessage.userArg, message);
+						message = null; // Do not release this message here
+						break;
 
-						case IoTMessage.MessageExecute:
-							message.device = device;
-							messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageExecute, sentMessage.executedInterfaceIndex | (sentMessage.executedCommand << 8), sentMessage.userArg, message);
-							message = null; // Do not release this message here
+					case IoTMessage.MessageSubscribeProperty:
+					case IoTMessage.MessageUnsubscribeProperty:
+						device.handleSubscribe_(sentMessage.payload0, sentMessage.payload1, sentMessage.messageType == IoTMessage.MessageSubscribeProperty, message.responseCode);
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, sentMessage.messageType, message.responseCode, sentMessage.userArg, device.property_(sentMessage.payload0, sentMessage.payload1));
+						break;
+
+					case IoTMessage.MessageGetPropertyRange:
+					case IoTMessage.MessageSetPropertyRange:
+						if (sentMessage.transfer != null) {
+							final IoTSentMessage.Transfer transfer = sentMessage.transfer;
+							if (message.responseCode == IoTMessage.ResponseOK) {
+								if (sentMessage.messageType == IoTMessage.MessageGetPropertyRange)
+									transfer.property.handlePropertyRange_(message.payload, message.payloadLength);
+							} else if (message.responseCode == IoTMessage.ResponseUnsupportedMessage && !transfer.abandoned) {
+								// Older devices do not support ranges, so transfer the entire value
+								// at once instead (the remaining chunks will just be ignored)
+								transfer.abandoned = true;
+								final IoTProperty property = transfer.property;
+								if (sentMessage.messageType == IoTMessage.MessageGetPropertyRange) {
+									device.getPropertyRangeUnsupported_();
+									sendMessage_(sentMessageCache.getProperty(property.ioTInterface, property.index, transfer.userArg), transfer.future);
+								} else {
+									device.setPropertyRangeUnsupported_();
+									sendMessage_(sentMessageCache.setProperty(property.ioTInterface, property.index, property.valueBuffer(), transfer.userArg), transfer.future);
+								}
+							}
+							if (transfer.chunkFinished_(message.responseCode, false))
+								messageToSendToMainThread = transferFinishedMessage_(transfer, device);
 							break;
+						}
+						if (message.responseCode == IoTMessage.ResponseUnsupportedMessage) {
+							// Older devices do not support ranges, so send the entire value
+							// instead (this message will be sent after sentMessage is released)
+							final IoTProperty property = device.property_(sentMessage.payload0, sentMessage.payload1);
+							device.setPropertyRangeUnsupported_();
+							if (property != null) {
+								sendMessage_(sentMessageCache.setProperty(property.ioTInterface, property.index, property.valueBuffer(), sentMessage.userArg), sentMessage.future);
+								break;
+							}
+						}
+						message.device = device;
+						storeResponse_(sentMessage, device, message);
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, IoTMessage.MessageSetProperty, 0, sentMessage.userArg, message);
+						message = null; // Do not release this message here
+						break;
 
-						case IoTMessage.MessageGetProperty:
-						case IoTMessage.MessageSetProperty:
-							message.device = device;
-							messageToSendToMainThread = Message.obtain(mainThreadHandler, sentMessage.messageType, 0, sentMessage.userArg, message);
-							message = null; // Do not release this message here
+					case IoTMessage.MessageGetProperty:
+					case IoTMessage.MessageSetProperty:
+						// Messages with futures (or in scenes) are not split, because the
+						// result would be spread among several messages
+						if (message.responseCode == IoTMessage.ResponsePayloadTooLarge &&
+							sentMessage.scene == null &&
+							sentMessage.future == null &&
+							splitTooLargeMessage_(device, sentMessage))
 							break;
+						message.device = device;
+						storeResponse_(sentMessage, device, message);
+						if (sentMessage.scene != null) {
+							message.sceneMember = true;
+							if (sentMessage.scene.memberFinished_(sentMessage.sceneMember, message.responseCode))
+								finishedScene = sentMessage.scene;
 						}
+						messageToSendToMainThread = Message.obtain(mainThreadHandler, sentMessage.messageType, 0, sentMessage.userArg, message);
+						message = null; // Do not release this message here
+						break;
 					}
-				} finally {
-					// Do not remove query device messages (let them timeout).
-					// Also, we must first release the old message/send the new one,
-					// before sending the message to the main thread, to guarantee
-					// that isWaitingForResponses() reflects the correct scenario!
-					if (messageType != IoTMessage.MessageQueryDevice)
-						sentMessageCache.unmarkAsSentMessageAndRelease_(sentMessage);
-					if (device != null)
-						sendNextMessageInDeviceQueue_(device);
-					if (messageToSendToMainThread != null)
-						mainThreadHandler.sendMessage(messageToSendToMainThread);
 				}
-			} catch (SocketTimeoutException ex) {
-				// Just ignore, we will try again later
-			} catch (Throwable ex) {
-				mainThreadHandler.sendMessage(Message.obtain(mainThreadHandler, IoTMessage.MessageException, messageType, userArg, ex));
 			} finally {
-				if (message != null)
-					messageCache.release_(message);
+				// Do not release query device messages (let them timeout).
+				// Also, we must first release the old message/send the new one,
+				// before sending the message to the main thread, to guarantee
+				// that isWaitingForResponses() reflects the correct scenario!
+				if (messageType != IoTMessage.MessageQueryDevice)
+					sentMessageCache.release_(sentMessage);
+				if (device != null)
+					sendNextMessageInDeviceQueue_(device);
+				if (messageToSendToMainThread != null)
+					dispatch_(messageToSendToMainThread);
+				// Only after the last member's values have been handled
+				if (finishedScene != null)
+					dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageSceneFinished, finishedScene));
+			}
+		} catch (Throwable ex) {
+			dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageException, messageType, userArg, ex));
+		} finally {
+			if (message != null)
+				messageCache.release_(message);
+		}
+	}
+
+	@SecondaryThread
+	private int checkKeepAlive_(Map<SocketAddress, IoTDevice> devices, int keepAliveIdleTimeout, Random random) {
+		// Only devices that have been silent for a while are pinged, and only a few of them
+		// at a time, so the keepalive traffic is spread out, and grows with the number of idle
+		// devices, rather than with the total number of devices
+		final int now = (int)SystemClock.elapsedRealtime();
+		int pings = 0;
+		for (IoTDevice device : devices.values()) {
+			if (device.keepAlivePending)
+				continue;
+			if (device.keepAliveJitter == 0)
+				device.keepAliveJitter = 1 + random.nextInt((keepAliveIdleTimeout >> 2) + 1);
+			final int due = keepAliveIdleTimeout + device.keepAliveJitter;
+			if ((now - device.lastSeen_()) < due || (now - device.keepAliveTimestamp) < due)
+				continue;
+			if (pings >= MaxKeepAlivesPerCheck)
+				break;
+			pings++;
+			device.keepAlivePending = true;
+			device.keepAliveTimestamp = now;
+			// A new jitter for the next time
+			device.keepAliveJitter = 0;
+			final IoTSentMessage sentMessage = sentMessageCache.ping(device, 0);
+			sentMessage.keepAlive = true;
+			doSendMessage_(sentMessage, false, false);
+		}
+		return now;
+	}
+
+	@SecondaryThread
+	private Packet takePacket_() {
+		synchronized (freePackets) {
+			final Packet packet = freePackets.pollLast();
+			if (packet != null)
+				return packet;
+		}
+		return new Packet();
+	}
+
+	@SecondaryThread
+	private void releasePacket_(Packet packet) {
+		packet.socketAddress = null;
+		synchronized (freePackets) {
+			if (freePackets.size() < MaxFreePackets)
+				freePackets.addLast(packet);
+		}
+	}
+
+	private static final class Packet {
+		final byte[] buffer = IoTMessage.allocateMaximumResponseBuffer_();
+		int length;
+		SocketAddress socketAddress;
+	}
+
+	// Handles the responses of a subset of the devices, as well as their conflated property changes
+	private final class Partition implements Runnable {
+		final IoTSentMessage placeholder = sentMessageCache.placeholder_(new InetSocketAddress(IoTPort));
+		final ArrayList<IoTProperty> conflatedProperties = new ArrayList<>(16);
+		private int lastConflatedFlush = (int)SystemClock.elapsedRealtime();
+		private final ArrayDeque<Packet> packets = new ArrayDeque<>(16);
+		private Thread thread;
+
+		void start_(int index) {
+			thread = new Thread(this, "IoTClient Partition Thread " + index);
+			thread.start();
+		}
+
+		void stop_() {
+			synchronized (packets) {
+				packets.notify();
+			}
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (Throwable ex) {
+				// Just ignore
+			}
+		}
+
+		@SecondaryThread
+		void enqueue_(Packet packet) {
+			synchronized (packets) {
+				if (packets.size() < MaxPendingPacketsPerPartition) {
+					packets.addLast(packet);
+					packets.notify();
+					return;
+				}
 			}
+			// This partition cannot keep up, so just drop the datagram (the device will be
+			// asked again, as if the datagram had been lost in the network)
+			releasePacket_(packet);
+		}
+
+		// Returns how long (in ms) until the next flush, or -1 if there is nothing to be flushed
+		@SecondaryThread
+		int flushConflatedProperties_() {
+			if (conflatedProperties.isEmpty())
+				return -1;
+			final int frameInterval = ((propertyChangeConflationInterval > 0) ? propertyChangeConflationInterval : DefaultFrameInterval);
+			final int remaining = frameInterval - ((int)SystemClock.elapsedRealtime() - lastConflatedFlush);
+			if (remaining > 0)
+				return remaining;
+			// One message per device, so the changes of each device are dispatched in order
+			// with its other events (see IoTDispatcher)
+			final int size = conflatedProperties.size();
+			for (int i = 0; i < size; i++) {
+				final IoTProperty first = conflatedProperties.get(i);
+				if (first == null)
+					continue;
+				final IoTDevice device = first.ioTInterface.device;
+				int count = 0;
+				for (int j = i; j < size; j++) {
+					final IoTProperty property = conflatedProperties.get(j);
+					if (property != null && property.ioTInterface.device == device)
+						count++;
+				}
+				final IoTProperty[] properties = new IoTProperty[count];
+				count = 0;
+				for (int j = i; j < size; j++) {
+					final IoTProperty property = conflatedProperties.get(j);
+					if (property != null && property.ioTInterface.device == device) {
+						property.conflatedChangePending = false;
+						properties[count++] = property;
+						conflatedProperties.set(j, null);
+					}
+				}
+				dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessagePropertyChanges, properties));
+			}
+			conflatedProperties.clear();
+			lastConflatedFlush = (int)SystemClock.elapsedRealtime();
+			return -1;
+		}
+
+		@Override
+		@SecondaryThread
+		public void run() {
+			while (alive) {
+				Packet packet;
+				final int remaining = flushConflatedProperties_();
+				synchronized (packets) {
+					if ((packet = packets.pollFirst()) == null) {
+						try {
+							packets.wait((remaining < 0) ? SocketTimeout : remaining);
+						} catch (InterruptedException ex) {
+							// Just ignore (alive will be checked again)
+						}
+						packet = packets.pollFirst();
+					}
+				}
+				if (packet != null) {
+					handlePacket_(this, packet.buffer, packet.length, packet.socketAddress);
+					releasePacket_(packet);
+				}
+			}
+		}
+	}
+
+	@SecondaryThread
+	private static IoTDevice knownDevice_(Map<SocketAddress, IoTDevice> devices, Map<SocketAddress, IoTDevice> pendingDevices, SocketAddress socketAddress) {
+		// Devices still being described can already be used (see DiscoveryObserver)
+		final IoTDevice device = devices.get(socketAddress);
+		return ((device != null) ? device : pendingDevices.get(socketAddress));
+	}
+
+	// Called for every valid message, which proves the device is still there
+	@SecondaryThread
+	private void seen_(IoTDevice device) {
+		if (device.seen_((int)SystemClock.elapsedRealtime()))
+			dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessagePresenceChanged, 1, 0, device));
+	}
+
+	@SecondaryThread
+	private void deviceDescribed_(HashMap<UUID, IoTDeviceTemplate> templates, IoTDevice device, boolean saveToDiscoveryCache) {
+		final ArrayList<byte[]> discoveryRecords = device.takeDiscoveryRecords_();
+		if (discoveryRecords == null || discoveryRecords.size() <= 1)
+			return;
+		synchronized (templates) {
+			IoTDeviceTemplate.register_(templates, device, discoveryRecords);
 		}
+		final IoTDiscoveryCache discoveryCache = this.discoveryCache;
+		if (saveToDiscoveryCache && discoveryCache != null)
+			discoveryCache.save_(device, discoveryRecords);
 	}
 
 	@SecondaryThread
 	@SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
 	private void runSenderThread_(Object senderThreadSync) {
 		final byte[] buffer = IoTMessage.allocateMaximumRequestBuffer_();
+		final IoTCompression compression = new IoTCompression();
 		final DatagramPacket sentPacket = new DatagramPacket(buffer, buffer.length);
 		Looper.prepare();
 		senderThreadLooper = Looper.myLooper();
@@ -553,22 +1408,48 @@ public final class IoTClient {
 				if (!alive || !(msg.obj instanceof IoTSentMessage))
 					return true;
 				final IoTSentMessage sentMessage = (IoTSentMessage)msg.obj;
+				// Retries (msg.arg2 != 0) are still waiting for responses, so these fields are
+				// only meaningful if buildRetry_() succeeds (see IoTSentMessage.Cache.claim_())
+				final boolean retry = (msg.arg2 != 0);
+				final IoTScene scene = sentMessage.scene;
+				final int sceneMember = sentMessage.sceneMember;
+				final IoTFuture future = sentMessage.future;
 				int messageType = IoTMessage.MessageException, userArg = 0;
+				boolean marked = retry;
 				try {
 					final IoTDevice device = sentMessage.device;
 					messageType = sentMessage.messageType;
 					userArg = sentMessage.userArg;
-					sentPacket.setSocketAddress(sentMessage.socketAddress);
-					sentPacket.setData(buffer, 0, sentMessage.build_(buffer));
-					sentMessageCache.markAsSentMessage_(sentMessage);
+					// Keepalive pings are internal, and scene members are reported with
+					// the entire scene, so they are never reported
+					final boolean notifyObserver = (msg.what != 0 && !sentMessage.keepAlive && scene == null);
+					if (retry) {
+						if (!sentMessageCache.buildRetry_(sentMessage, msg.arg1, sentPacket, buffer, compression))
+							return true;
+					} else {
+						sentPacket.setSocketAddress(sentMessage.socketAddress);
+						sentPacket.setData(buffer, 0, sentMessage.build_(buffer, compression));
+						sentMessageCache.markAsSentMessage_(sentMessage);
+						marked = true;
+					}
 					socket.send(sentPacket);
-					if (msg.what != 0)
-						mainThreadHandler.sendMessage(Message.obtain(mainThreadHandler, IoTMessage.MessageSent, messageType, userArg, device));
+					if (notifyObserver)
+						dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageSent, messageType, userArg, device));
 				} catch (Throwable ex) {
-					sentMessageCache.unmarkAsSentMessageAndRelease_(sentMessage);
-					final Handler h = mainThreadHandler;
-					if (h != null)
-						h.sendMessage(Message.obtain(h, IoTMessage.MessageException, messageType, userArg, ex));
+					// If the message had already been sent, its response (or its timeout) may
+					// have finished it in the meantime
+					if (marked && !sentMessageCache.claim_(sentMessage))
+						return true;
+					sentMessageCache.release_(sentMessage);
+					if (future != null)
+						future.complete_(IoTFuture.ResultNotSent);
+					dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageException, messageType, userArg, ex));
+					if (scene != null && scene.memberFinished_(sceneMember, IoTScene.ResultNotSent))
+						dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageSceneFinished, scene));
+					// This message will never time out, so it must be counted here, otherwise
+					// the scan would never end (see isScanningDevices())
+					if (messageType == IoTMessage.MessageQueryDevice)
+						dispatch_(Message.obtain(mainThreadHandler, IoTMessage.MessageQueryDevice));
 				}
 				return true;
 			}
@@ -590,6 +1471,12 @@ public final class IoTClient {
 		}
 	}
 
+	@SecondaryThread
+	private void sendMessage_(IoTSentMessage sentMessage, IoTFuture future) {
+		sentMessage.future = future;
+		sendMessage_(sentMessage);
+	}
+
 	@SecondaryThread
 	private void sendMessage_(IoTSentMessage sentMessage) {
 		doSendMessage_(sentMessage,
@@ -611,12 +1498,158 @@ public final class IoTClient {
 		return true;
 	}
 
+	private boolean sendMessage(IoTSentMessage sentMessage, IoTFuture future) {
+		sentMessage.future = future;
+		if (sendMessage(sentMessage))
+			return true;
+		if (future != null)
+			future.complete_(IoTFuture.ResultNotSent);
+		return false;
+	}
+
+	private SocketAddress[] getDiscoveryAddresses() {
+		final long now = SystemClock.elapsedRealtime();
+		SocketAddress[] discoveryAddresses = this.discoveryAddresses;
+		if (discoveryAddresses != null && (now - discoveryAddressesTimestamp) < DiscoveryAddressesTimeout)
+			return discoveryAddresses;
+
+		final ArrayList<SocketAddress> addresses = new ArrayList<>(4);
+		try {
+			final Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
+			while (networkInterfaces != null && networkInterfaces.hasMoreElements()) {
+				final NetworkInterface networkInterface = networkInterfaces.nextElement();
+				if (!networkInterface.isUp() || networkInterface.isLoopback())
+					continue;
+				for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+					// Only IPv4 addresses have broadcast addresses
+					final InetAddress broadcast = interfaceAddress.getBroadcast();
+					if (broadcast == null)
+						continue;
+					final InetSocketAddress address = new InetSocketAddress(broadcast, IoTPort);
+					if (!addresses.contains(address))
+						addresses.add(address);
+				}
+			}
+		} catch (Throwable ex) {
+			// Just ignore
+		}
+		if (addresses.isEmpty()) {
+			final InetSocketAddress address = getBroadcastAddress();
+			if (address != null)
+				addresses.add(address);
+		}
+		synchronized (multicastGroups) {
+			for (InetAddress group : multicastGroups)
+				addresses.add(new InetSocketAddress(group, IoTPort));
+		}
+		while (addresses.size() > MaxDiscoveryAddresses)
+			addresses.remove(addresses.size() - 1);
+
+		discoveryAddresses = addresses.toArray(new SocketAddress[addresses.size()]);
+		this.discoveryAddresses = discoveryAddresses;
+		discoveryAddressesTimestamp = now;
+		return discoveryAddresses;
+	}
+
+	// Makes the next scan enumerate the local network interfaces again
+	public void invalidateDiscoveryAddresses() {
+		discoveryAddressesTimestamp = -DiscoveryAddressesTimeout;
+	}
+
+	// Devices are also queried through the given multicast group (in addition to the
+	// broadcast addresses of all local network interfaces)
+	public void addMulticastGroup(InetAddress group) {
+		if (!group.isMulticastAddress())
+			throw new IllegalArgumentException("!group.isMulticastAddress()");
+		synchronized (multicastGroups) {
+			if (!multicastGroups.contains(group))
+				multicastGroups.add(group);
+		}
+		invalidateDiscoveryAddresses();
+	}
+
+	public void removeMulticastGroup(InetAddress group) {
+		synchronized (multicastGroups) {
+			multicastGroups.remove(group);
+		}
+		invalidateDiscoveryAddresses();
+	}
+
 	public boolean isScanningDevices() {
-		return scanningDevices;
+		synchronized (scanSync) {
+			return (pendingScanMessages > 0);
+		}
 	}
 
 	public boolean scanDevices() {
-		return (!scanningDevices && (scanningDevices = sendMessage(sentMessageCache.queryDevice(getBroadcastAddress()))));
+		return scanDevices(false);
+	}
+
+	private boolean scanDevices(boolean background) {
+		if (!alive || senderThreadHandler == null)
+			return false;
+		final SocketAddress[] discoveryAddresses;
+		synchronized (scanSync) {
+			if (pendingScanMessages > 0)
+				return false;
+			discoveryAddresses = getDiscoveryAddresses();
+			if (discoveryAddresses.length == 0)
+				return false;
+			pendingScanMessages = discoveryAddresses.length;
+		}
+		for (int i = 0; i < discoveryAddresses.length; i++) {
+			final IoTSentMessage sentMessage = sentMessageCache.queryDevice(discoveryAddresses[i], IoTMessage.MaximumSequenceNumber - i);
+			// Background scans are not retried as many times, because every retry makes
+			// all the devices (even the known ones) answer again
+			if (background)
+				sentMessage.attempts = ((maximumAttempts <= DefaultMaximumAttempts) ? DefaultMaximumAttempts : maximumAttempts) - BackgroundScanAttempts;
+			if (!sendMessage(sentMessage)) {
+				// This message will never time out
+				synchronized (scanSync) {
+					if (pendingScanMessages > 0)
+						pendingScanMessages--;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Scans for devices periodically, starting every minimumInterval ms, and backing off
+	// (with some jitter, so several clients do not scan at the same time) up to every
+	// maximumInterval ms, while nothing new is found (only new or changed devices are
+	// reported to onQueryDevice())
+	public void startBackgroundScans(int minimumInterval, int maximumInterval) {
+		if (minimumInterval < 1000 || maximumInterval < minimumInterval)
+			throw new IllegalArgumentException("1000 <= minimumInterval <= maximumInterval");
+		stopBackgroundScans();
+		if (!alive || mainThreadHandler == null)
+			return;
+		if (backgroundScanRandom == null)
+			backgroundScanRandom = new Random();
+		backgroundScanMinimumInterval = minimumInterval;
+		backgroundScanMaximumInterval = maximumInterval;
+		backgroundScanInterval = minimumInterval;
+		backgroundScanRunnable = new Runnable() {
+			@Override
+			public void run() {
+				if (!alive || backgroundScanRunnable != this)
+					return;
+				scanDevices(true);
+				// +/- 25% of jitter
+				final int interval = backgroundScanInterval;
+				mainThreadHandler.postDelayed(this, interval - (interval >> 2) + backgroundScanRandom.nextInt((interval >> 1) + 1));
+				backgroundScanInterval = ((interval >= (backgroundScanMaximumInterval >> 1)) ? backgroundScanMaximumInterval : (interval << 1));
+			}
+		};
+		mainThreadHandler.post(backgroundScanRunnable);
+	}
+
+	public void stopBackgroundScans() {
+		if (backgroundScanRunnable != null) {
+			if (mainThreadHandler != null)
+				mainThreadHandler.removeCallbacks(backgroundScanRunnable);
+			backgroundScanRunnable = null;
+		}
 	}
 
 	@SecondaryThread
@@ -634,13 +1667,28 @@ public final class IoTClient {
 	}
 
 	boolean handshake(IoTDevice device, int userArg) {
-		return sendMessage(sentMessageCache.handshake(device, userArg));
+		return handshake(device, userArg, null);
+	}
+
+	boolean handshake(IoTDevice device, int userArg, IoTFuture future) {
+		// A session cannot be created without a password (see IoTSession), and devices that
+		// require encryption must not be sent anything in clear text
+		if (device.isEncryptionRequired() && device.password == null) {
+			if (future != null)
+				future.complete_(IoTFuture.ResultNotSent);
+			return false;
+		}
+		return sendMessage(sentMessageCache.handshake(device, userArg), future);
 	}
 
 	boolean ping(IoTDevice device, int userArg) {
 		return sendMessage(sentMessageCache.ping(device, userArg));
 	}
 
+	boolean ping(IoTDevice device, int userArg, IoTFuture future) {
+		return sendMessage(sentMessageCache.ping(device, userArg), future);
+	}
+
 	boolean reset(IoTDevice device, int userArg) {
 		return sendMessage(sentMessageCache.reset(device, userArg));
 	}
@@ -653,11 +1701,132 @@ public final class IoTClient {
 		return sendMessage(sentMessageCache.execute(ioTInterface, command, userArg));
 	}
 
+	boolean execute(IoTInterface ioTInterface, int command, int userArg, IoTFuture future) {
+		return sendMessage(sentMessageCache.execute(ioTInterface, command, userArg), future);
+	}
+
 	boolean getProperty(IoTProperty property, int userArg) {
-		return sendMessage(sentMessageCache.getProperty(property.ioTInterface, property.index, userArg));
+		return getProperty(property, userArg, null);
+	}
+
+	boolean getProperty(IoTProperty property, int userArg, IoTFuture future) {
+		if ((property.elementSize * property.elementCount) > IoTMessage.MaxChunkLength &&
+			property.ioTInterface.device.isGetPropertyRangeSupported())
+			return getPropertyInChunks(property, userArg, future);
+		return sendMessage(sentMessageCache.getProperty(property.ioTInterface, property.index, userArg), future);
+	}
+
+	@MixedThreads
+	private boolean getPropertyInChunks(IoTProperty property, int userArg, IoTFuture future) {
+		// Each chunk is retried on its own, so only the missing chunks are sent again
+		final int length = property.elementSize * property.elementCount;
+		final IoTSentMessage.Transfer transfer = new IoTSentMessage.Transfer(property,
+			IoTMessage.MessageGetProperty,
+			(length + IoTMessage.MaxChunkLength - 1) / IoTMessage.MaxChunkLength,
+			userArg);
+		transfer.future = future;
+		boolean ok = true;
+		for (int offset = 0; offset < length; offset += IoTMessage.MaxChunkLength)
+			ok &= sendMessage(sentMessageCache.getPropertyRange(property.ioTInterface, property.index, offset, Math.min(offset + IoTMessage.MaxChunkLength, length), transfer));
+		if (!ok && future != null)
+			future.complete_(IoTFuture.ResultNotSent);
+		return ok;
+	}
+
+	@MixedThreads
+	private boolean setPropertyInChunks(IoTProperty property, IoTProperty.Buffer value, int userArg, IoTFuture future) {
+		final int length;
+		synchronized (value) {
+			length = value.length;
+		}
+		final IoTSentMessage.Transfer transfer = new IoTSentMessage.Transfer(property,
+			IoTMessage.MessageSetProperty,
+			(length + IoTMessage.MaxChunkLength - 1) / IoTMessage.MaxChunkLength,
+			userArg);
+		transfer.future = future;
+		boolean ok = true;
+		for (int offset = 0; offset < length; offset += IoTMessage.MaxChunkLength) {
+			final IoTSentMessage sentMessage = sentMessageCache.setPropertyRanges(property.ioTInterface, property.index, value, new int[] { offset, Math.min(offset + IoTMessage.MaxChunkLength, length) }, userArg);
+			sentMessage.transfer = transfer;
+			ok &= sendMessage(sentMessage);
+		}
+		if (!ok && future != null)
+			future.complete_(IoTFuture.ResultNotSent);
+		return ok;
+	}
+
+	private static boolean canSetPropertyInChunks(IoTProperty property, IoTProperty.Buffer value) {
+		// Ranges do not change the length of the value, so only values that fill the entire
+		// buffer (or null terminated texts) can be sent in chunks
+		synchronized (value) {
+			return (value.length > IoTMessage.MaxChunkLength &&
+				(value.length == value.maxLength || property.unitNum == IoTProperty.UnitUTF8Text) &&
+				property.ioTInterface.device.isSetPropertyRangeSupported());
+		}
+	}
+
+	boolean getProperties(IoTDevice device, IoTProperty[] properties, int userArg) {
+		// Split the properties among as few messages as possible, making sure no response
+		// will be larger than MaxChunkLength (unless a single property is larger than that,
+		// in which case getProperty() will request it in chunks)
+		boolean ok = true;
+		int first = 0, responseLength = 0;
+		for (int i = 0; i <= properties.length; i++) {
+			final int recordLength = ((i == properties.length) ? IoTMessage.MaxChunkLength : (4 + (properties[i].elementSize * properties[i].elementCount)));
+			if (i > first && (responseLength + recordLength) > IoTMessage.MaxChunkLength) {
+				ok &= ((i - first) == 1 ?
+					getProperty(properties[first], userArg) :
+					sendMessage(sentMessageCache.getProperties(device, Arrays.copyOfRange(properties, first, i), userArg)));
+				first = i;
+				responseLength = 0;
+			}
+			responseLength += recordLength;
+		}
+		return ok;
 	}
 
 	boolean setProperty(IoTProperty property, IoTProperty.Buffer value, int userArg) {
-		return sendMessage(sentMessageCache.setProperty(property.ioTInterface, property.index, value, userArg));
+		return setProperty(property, value, userArg, null);
+	}
+
+	boolean setProperty(IoTProperty property, IoTProperty.Buffer value, int userArg, IoTFuture future) {
+		if (canSetPropertyInChunks(property, value))
+			return setPropertyInChunks(property, value, userArg, future);
+		return sendMessage(sentMessageCache.setProperty(property.ioTInterface, property.index, value, userArg), future);
+	}
+
+	boolean setPropertyRanges(IoTProperty property, IoTProperty.Buffer value, int[] ranges, int userArg) {
+		return setPropertyRanges(property, value, ranges, userArg, null);
+	}
+
+	boolean setPropertyRanges(IoTProperty property, IoTProperty.Buffer value, int[] ranges, int userArg, IoTFuture future) {
+		return sendMessage(sentMessageCache.setPropertyRanges(property.ioTInterface, property.index, value, ranges, userArg), future);
+	}
+
+	boolean setProperties(IoTDevice device, IoTProperty[] properties, int userArg) {
+		return sendMessage(sentMessageCache.setProperties(device, properties, userArg));
+	}
+
+	@MixedThreads
+	boolean sendSceneMember_(IoTScene scene, int member) {
+		if (!alive || senderThreadHandler == null)
+			return false;
+		final IoTProperty property = scene.property(member);
+		final IoTSentMessage sentMessage = ((property == null) ?
+			sentMessageCache.execute(scene.ioTInterface(member), scene.command_(member), scene.userArg_()) :
+			sentMessageCache.setProperty(property.ioTInterface, property.index, scene.value_(member), scene.userArg_()));
+		sentMessage.scene = scene;
+		sentMessage.sceneMember = member;
+		doSendMessage_(sentMessage, false, false);
+		return true;
+	}
+
+	@SecondaryThread
+	void subscribeProperty_(IoTProperty property, boolean subscribe) {
+		sendMessage_(sentMessageCache.subscribeProperty(property.ioTInterface, property.index, subscribe, 0));
+	}
+
+	boolean subscribeProperty(IoTProperty property, boolean subscribe, int userArg) {
+		return sendMessage(sentMessageCache.subscribeProperty(property.ioTInterface, property.index, subscribe, userArg));
 	}
 }
@@ -0,0 +1,215 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+// LZ4 block format (https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md) compression
+// for large payloads, preceded by the uncompressed length (2 bytes, little endian)
+//
+// Only one instance is created per client, and it is used only by the sender thread, so the
+// hash table and the output buffer are reused, and compressing a payload does not allocate
+final class IoTCompression {
+	// Smaller payloads are never compressed (it is not worth it)
+	static final int MinPayloadLength = 256;
+
+	private static final int HashBits = 12;
+	private static final int MinMatch = 4;
+	private static final int LastLiterals = 5; // The last 5 bytes must always be literals
+	private static final int MatchFindLimit = 12; // The last match must start at least 12 bytes before the end
+	private static final int MaxOffset = 65535;
+
+	private final int[] table = new int[1 << HashBits];
+	// Positions are stored in the table relative to base, so that the table does not need to
+	// be cleared before each call (entries from previous calls become negative/invalid)
+	private int base;
+
+	final byte[] buffer;
+
+	@SecondaryThread
+	IoTCompression() {
+		buffer = new byte[2 + IoTMessage.MaxPayloadLength];
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8) | ((buffer[offset + 2] & 0xFF) << 16) | (buffer[offset + 3] << 24);
+	}
+
+	private static int writeLength(byte[] dst, int dstOffset, int length) {
+		while (length >= 255) {
+			dst[dstOffset++] = (byte)255;
+			length -= 255;
+		}
+		dst[dstOffset++] = (byte)length;
+		return dstOffset;
+	}
+
+	// Compresses src into buffer, returning the length of the compressed data, or -1 when the
+	// compressed data would not be smaller than the original data
+	@SecondaryThread
+	int compress_(byte[] src, int srcOffset, int length) {
+		if (length < MinPayloadLength || length > IoTMessage.MaxPayloadLength)
+			return -1;
+
+		if (base > (Integer.MAX_VALUE >> 1)) {
+			java.util.Arrays.fill(table, 0);
+			base = 0;
+		}
+		// All entries stored in previous calls are now < base, and positions stored in
+		// this call are >= base + 1
+		base += IoTMessage.MaxPayloadLength + 1;
+
+		final byte[] dst = buffer;
+		// The compressed data, including its 2-byte prefix, must be smaller than the original data
+		final int dstLimit = length - 1;
+		final int end = srcOffset + length, matchLimit = end - MatchFindLimit, lastMatchEnd = end - LastLiterals;
+		int ip = srcOffset, anchor = srcOffset, op = 2;
+
+		dst[0] = (byte)length;
+		dst[1] = (byte)(length >>> 8);
+
+		while (ip < matchLimit) {
+			final int sequence = readInt(src, ip);
+			final int hash = (sequence * -1640531535) >>> (32 - HashBits);
+			final int ref = table[hash] - base - 1 + srcOffset;
+			table[hash] = ip - srcOffset + base + 1;
+			if (ref < srcOffset || ref >= ip || (ip - ref) > MaxOffset || readInt(src, ref) != sequence) {
+				ip++;
+				continue;
+			}
+
+			int matchLength = MinMatch;
+			while ((ip + matchLength) < lastMatchEnd && src[ref + matchLength] == src[ip + matchLength])
+				matchLength++;
+
+			final int literalLength = ip - anchor;
+			// token + literal length + literals + offset + match length
+			if ((op + 1 + (literalLength / 255) + 1 + literalLength + 2 + ((matchLength - MinMatch) / 255) + 1) > dstLimit)
+				return -1;
+
+			final int token = op++;
+			if (literalLength >= 15) {
+				dst[token] = (byte)(15 << 4);
+				op = writeLength(dst, op, literalLength - 15);
+			} else {
+				dst[token] = (byte)(literalLength << 4);
+			}
+			System.arraycopy(src, anchor, dst, op, literalLength);
+			op += literalLength;
+
+			final int offset = ip - ref;
+			dst[op++] = (byte)offset;
+			dst[op++] = (byte)(offset >>> 8);
+
+			if ((matchLength - MinMatch) >= 15) {
+				dst[token] |= 15;
+				op = writeLength(dst, op, matchLength - MinMatch - 15);
+			} else {
+				dst[token] |= (byte)(matchLength - MinMatch);
+			}
+
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		// Last literals
+		final int literalLength = end - anchor;
+		if ((op + 1 + (literalLength / 255) + 1 + literalLength) > dstLimit)
+			return -1;
+		final int token = op++;
+		if (literalLength >= 15) {
+			dst[token] = (byte)(15 << 4);
+			op = writeLength(dst, op, literalLength - 15);
+		} else {
+			dst[token] = (byte)(literalLength << 4);
+		}
+		System.arraycopy(src, anchor, dst, op, literalLength);
+		return op + literalLength;
+	}
+
+	// Returns null if src does not contain valid compressed data
+	@SecondaryThread
+	static byte[] decompress_(byte[] src, int srcOffset, int length) {
+		if (length < 3)
+			return null;
+		final int end = srcOffset + length;
+		final int dstLength = (src[srcOffset] & 0xFF) | ((src[srcOffset + 1] & 0xFF) << 8);
+		if (dstLength > IoTMessage.MaxPayloadLength)
+			return null;
+		final byte[] dst = new byte[dstLength];
+		int ip = srcOffset + 2, op = 0;
+		while (ip < end) {
+			final int token = (src[ip++] & 0xFF);
+
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int b;
+				do {
+					if (ip >= end)
+						return null;
+					b = (src[ip++] & 0xFF);
+					literalLength += b;
+				} while (b == 255);
+			}
+			if ((ip + literalLength) > end || (op + literalLength) > dstLength)
+				return null;
+			System.arraycopy(src, ip, dst, op, literalLength);
+			ip += literalLength;
+			op += literalLength;
+
+			// The last sequence only has literals
+			if (ip >= end)
+				break;
+
+			if ((ip + 2) > end)
+				return null;
+			final int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+			ip += 2;
+			if (offset == 0 || offset > op)
+				return null;
+
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (ip >= end)
+						return null;
+					b = (src[ip++] & 0xFF);
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MinMatch;
+			if ((op + matchLength) > dstLength)
+				return null;
+			// The source and the destination may overlap, so the bytes must be copied one by one
+			for (int ref = op - offset; matchLength > 0; matchLength--)
+				dst[op++] = dst[ref++];
+		}
+		return ((op == dstLength) ? dst : null);
+	}
+}
@@ -29,16 +29,30 @@
 //
 package br.com.carlosrafaelgn.iotdcp;
 
+import android.os.SystemClock;
+
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.UUID;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 public final class IoTDevice {
+	public interface Observer {
+		// Called once for every response/change carrying property values, after the
+		// observers of the individual properties, with the indices of all the properties
+		// that have changed (see propertyIndex() and propertyAt()). changedProperties is
+		// reused by the next notification of this device, so it must not be kept.
+		void onPropertiesChange(IoTDevice device, BitSet changedProperties, int userArg);
+	}
+
 	private static final int FlagNameReadOnly = 0x01;
 	private static final int FlagPasswordProtected = 0x02;
 	private static final int FlagPasswordReadOnly = 0x04;
 	private static final int FlagResetSupported = 0x08;
 	private static final int FlagEncryptionRequired = 0x10;
+	private static final int FlagCompressionSupported = 0x20;
 
 	public final IoTClient client;
 	public final UUID categoryUuid, uuid;
@@ -46,13 +60,53 @@ public final class IoTDevice {
 
 	public Object userTag;
 
+	private Observer observer;
+	private volatile IoTPublisher publisher;
+
 	private final int flags;
 	private final IoTInterface[] ioTInterfaces;
 	private final int hash;
+	private IoTProperty[] readableProperties;
 
 	final SocketAddress socketAddress;
 	int clientId, sequenceNumber;
 	byte[] password;
+	// Optional field, appended by newer devices to the QueryDevice payload, after the name,
+	// which changes whenever any part of the description changes (interfaces, properties,
+	// names, units, enums...), such as a hash of the description or the firmware version
+	long descriptionHash = NoDescriptionHash;
+	static final long NoDescriptionHash = -1;
+
+	// Only used by the client thread, while the device is being discovered, when the client
+	// has a discovery cache
+	private ArrayList<byte[]> discoveryRecords;
+
+	// Only used when the client has a session store
+	int reservedSequenceNumbers;
+	private boolean sessionResumed;
+
+	// Established during the handshake with devices that require encryption (null otherwise)
+	volatile IoTSession session;
+	// Cleared when the device answers ResponseUnsupportedMessage to MessageGetPropertyRange/MessageSetPropertyRange
+	private volatile boolean getPropertyRangeSupported = true, setPropertyRangeSupported = true;
+
+	// Updated by the client thread whenever a valid response comes from this device
+	private volatile int lastSeen;
+	private volatile boolean present = true;
+	// Only used by the client thread, to schedule keepalive pings (see IoTClient.setKeepAliveIdleTimeout())
+	volatile boolean keepAlivePending;
+	int keepAliveTimestamp, keepAliveJitter;
+
+	// All properties, in the order their interfaces were described (replaced by a larger
+	// copy whenever an interface is described, see propertyIndex())
+	private volatile IoTProperty[] indexedProperties = new IoTProperty[0];
+	// Reused by every notification of this device, which are never made concurrently
+	// (the dispatcher delivers all events of the same device in order, see IoTDispatcher)
+	private final BitSet changedProperties = new BitSet();
+
+	// Sequence number of the last ServerMessagePropertyChange received (only used by the client
+	// thread), used to discard duplicated/old messages
+	private int lastPropertyChangeSequenceNumber = -1;
 
 	// Used from a secondary thread, in a synchronized block
 	private boolean isSentMessageWaitingToBeReceived;
@@ -69,6 +123,7 @@ public final class IoTDevice {
 		hash = socketAddress.hashCode();
 
 		clientId = IoTMessage.InvalidClientId;
+		lastSeen = (int)SystemClock.elapsedRealtime();
 	}
 
 	@Override
@@ -86,6 +141,51 @@ public final class IoTDevice {
 		return (o != null && (o == this || ((o instanceof IoTDevice) && ((IoTDevice)o).socketAddress.equals(socketAddress))));
 	}
 
+	// Checks whether a new QueryDevice response (already parsed into device) still describes
+	// this device (flags, category, uuid, name, description hash and interface types), so only
+	// new or changed devices are published again
+	@SecondaryThread
+	boolean matchesQueryDevice_(IoTDevice device, byte[] payload, int payloadLength) {
+		final int interfaceCountOffset = 1 + 16 + 16;
+		if (device.flags != flags ||
+			device.ioTInterfaces.length != ioTInterfaces.length ||
+			device.descriptionHash != descriptionHash ||
+			!device.categoryUuid.equals(categoryUuid) ||
+			!device.uuid.equals(uuid) ||
+			!device.name.equals(name) ||
+			payloadLength < (interfaceCountOffset + 1 + ioTInterfaces.length))
+			return false;
+		for (int i = ioTInterfaces.length - 1; i >= 0; i--) {
+			if (ioTInterfaces[i] == null || ioTInterfaces[i].type != (payload[interfaceCountOffset + 1 + i] & 0xFF))
+				return false;
+		}
+		return true;
+	}
+
+	// Returns true if the device was considered absent until now
+	@SecondaryThread
+	boolean seen_(int now) {
+		lastSeen = now;
+		if (present)
+			return false;
+		present = true;
+		return true;
+	}
+
+	// Returns true if the device was considered present until now
+	@SecondaryThread
+	boolean lost_() {
+		if (!present)
+			return false;
+		present = false;
+		return true;
+	}
+
+	@SecondaryThread
+	int lastSeen_() {
+		return lastSeen;
+	}
+
 	@SecondaryThread
 	boolean isComplete_() {
 		for (IoTInterface ioTInterface : ioTInterfaces) {
@@ -108,14 +208,27 @@ public final class IoTDevice {
 				switch (sentMessage.messageType) {
 				case IoTMessage.MessageGetProperty:
 				case IoTMessage.MessageSetProperty:
-					// Replace repeated get/set property messages with the most recent one
+					// Replace repeated get/set property messages with the most recent one (scene
+					// members are never replaced, because each one must finish for the scene to
+					// finish, and for its next members to be sent)
+					if (sentMessage.scene != null)
+						break;
 					IoTSentMessage previous = null, current = firstEnqueuedMessage;
 					while (current != null) {
 						if (current.messageType == sentMessage.messageType &&
+							current.scene == null &&
 							current.isSimilarGetSetPropertyMessage(sentMessage)) {
 							// Is this message already enqueued?
 							if (current == sentMessage)
 								return false;
+							// Whoever is waiting for the replaced message gets the result of the
+							// most recent one instead
+							if (current.future != null) {
+								if (sentMessage.future == null)
+									sentMessage.future = current.future;
+								else
+									current.future.completeWith_(sentMessage.future);
+							}
 							// Return this message to the cache, as it will no longer be used
 							cache.release_(current);
 							// Remove this message from the queue
@@ -171,31 +284,206 @@ public final class IoTDevice {
 	}
 
 	@SecondaryThread
-	void ioTInterfaceDiscovered_(IoTInterface ioTInterface) {
-		if (ioTInterfaces[ioTInterface.index] == null) {
-			ioTInterfaces[ioTInterface.index] = ioTInterface;
+	boolean ioTInterfaceDiscovered_(IoTInterface ioTInterface, boolean describePropertiesEnum) {
+		if (ioTInterfaces[ioTInterface.index] != null)
+			return false;
+		// The indices are assigned before the interface is published, and never change
+		final IoTProperty[] indexedProperties = this.indexedProperties;
+		final int propertyCount = ioTInterface.propertyCount();
+		final IoTProperty[] newIndexedProperties = Arrays.copyOf(indexedProperties, indexedProperties.length + propertyCount);
+		for (int i = 0; i < propertyCount; i++)
+			newIndexedProperties[indexedProperties.length + i] = ioTInterface.property(i);
+		ioTInterface.firstPropertyIndex = indexedProperties.length;
+		this.indexedProperties = newIndexedProperties;
+		ioTInterfaces[ioTInterface.index] = ioTInterface;
+		if (describePropertiesEnum)
 			ioTInterface.describePropertiesEnum_();
+		return true;
+	}
+
+	// Keeps the payloads that describe this device, while it is being discovered, so
+	// they can be saved in the client's IoTDiscoveryCache once the device is complete
+	@SecondaryThread
+	void recordDiscovery_(int messageType, byte[] payload, int payloadLength) {
+		if (discoveryRecords == null) {
+			// The QueryDevice record must always come first
+			if (messageType != IoTMessage.MessageQueryDevice)
+				return;
+			discoveryRecords = new ArrayList<>(ioTInterfaces.length + 1);
 		}
+		final byte[] record = new byte[1 + payloadLength];
+		record[0] = (byte)messageType;
+		System.arraycopy(payload, 0, record, 1, payloadLength);
+		discoveryRecords.add(record);
+	}
+
+	@SecondaryThread
+	ArrayList<byte[]> takeDiscoveryRecords_() {
+		final ArrayList<byte[]> discoveryRecords = this.discoveryRecords;
+		this.discoveryRecords = null;
+		return discoveryRecords;
 	}
 
+	// Returns the interface, if this enum was the last thing missing for it to be complete
 	@SecondaryThread
-	void handleDescribeEnum_(int responseCode, byte[] payload, int payloadLength) {
+	IoTInterface handleDescribeEnum_(int responseCode, byte[] payload, int payloadLength) {
 		if (payloadLength < 3)
-			return;
+			return null;
 		final int interfaceIndex = (payload[0] & 0xFF);
 		final int propertyIndex = (payload[1] & 0xFF);
-		if (interfaceIndex < ioTInterfaces.length)
-			ioTInterfaces[interfaceIndex].handleDescribeEnum_(responseCode, propertyIndex, payload, payloadLength);
+		if (interfaceIndex >= ioTInterfaces.length)
+			return null;
+		final IoTInterface ioTInterface = ioTInterfaces[interfaceIndex];
+		if (ioTInterface == null || ioTInterface.isComplete_())
+			return null;
+		ioTInterface.handleDescribeEnum_(responseCode, propertyIndex, payload, payloadLength);
+		return (ioTInterface.isComplete_() ? ioTInterface : null);
+	}
+
+	@SecondaryThread
+	void resubscribeProperties_() {
+		// A new handshake means the device has forgotten all our previous subscriptions
+		lastPropertyChangeSequenceNumber = -1;
+		for (IoTInterface ioTInterface : ioTInterfaces) {
+			// Interfaces may still be being described (see IoTClient.DiscoveryObserver)
+			if (ioTInterface != null)
+				ioTInterface.resubscribeProperties_();
+		}
+	}
+
+	@SecondaryThread
+	void handleSubscribe_(int interfaceIndex, int propertyIndex, boolean subscribe, int responseCode) {
+		if (interfaceIndex < ioTInterfaces.length && ioTInterfaces[interfaceIndex] != null)
+			ioTInterfaces[interfaceIndex].handleSubscribe_(propertyIndex, subscribe, responseCode);
+	}
+
+	@MixedThreads
+	IoTProperty property_(int interfaceIndex, int propertyIndex) {
+		if (interfaceIndex >= ioTInterfaces.length)
+			return null;
+		final IoTInterface ioTInterface = ioTInterfaces[interfaceIndex];
+		return ((ioTInterface == null || propertyIndex >= ioTInterface.propertyCount()) ? null : ioTInterface.property(propertyIndex));
+	}
+
+	@SecondaryThread
+	boolean isNewPropertyChange_(int sequenceNumber) {
+		// Devices may send the same message more than once, and UDP does not guarantee
+		// ordering, so only accept messages newer than the last one (considering wrap around)
+		if (lastPropertyChangeSequenceNumber >= 0) {
+			final int delta = (sequenceNumber - lastPropertyChangeSequenceNumber) & IoTMessage.MaximumSequenceNumber;
+			if (delta == 0 || delta > (IoTMessage.MaximumSequenceNumber >> 1))
+				return false;
+		}
+		lastPropertyChangeSequenceNumber = sequenceNumber;
+		return true;
 	}
 
 	void handleExecute(int responseCode, int interfaceIndex, int command, byte[] payload, int payloadLength, int userArg) {
-		if (interfaceIndex < ioTInterfaces.length)
+		if (interfaceIndex < ioTInterfaces.length && ioTInterfaces[interfaceIndex] != null)
 			ioTInterfaces[interfaceIndex].handleExecute(responseCode, command, payload, payloadLength, userArg);
 	}
 
-	void handleProperty(byte[] payload, int payloadLength, int userArg) {
+	// Notifies the observers about the properties in payload, whose values have already been
+	// stored by the client thread (see storePropertyChange_())
+	void notifyPropertyChanges(byte[] payload, int payloadLength, int userArg) {
 		if (payload == null)
 			return;
+		final Observer observer = this.observer;
+		final BitSet changedProperties = ((observer == null) ? null : this.changedProperties);
+		if (changedProperties != null)
+			changedProperties.clear();
+		int payloadOffset = 0;
+		while ((payloadLength - payloadOffset) >= 4) {
+			final int interfaceIndex = (payload[payloadOffset++] & 0xFF);
+			final int propertyIndex = (payload[payloadOffset++] & 0xFF);
+			final int propertyPayloadLength = (payload[payloadOffset++] & 0xFF) | ((payload[payloadOffset++] & 0xFF) << 8);
+			if ((payloadOffset + propertyPayloadLength) > payloadLength)
+				break;
+			final IoTProperty property = property_(interfaceIndex, propertyIndex);
+			if (property != null) {
+				property.notifyPropertyChange(userArg);
+				if (changedProperties != null)
+					changedProperties.set(propertyIndex(property));
+			}
+			payloadOffset += propertyPayloadLength;
+		}
+		if (changedProperties != null && !changedProperties.isEmpty())
+			observer.onPropertiesChange(this, changedProperties, userArg);
+	}
+
+	// Used after the observers of conflated changes have been notified (see
+	// IoTClient.setPropertyChangeConflation())
+	static void notifyPropertiesChange(IoTProperty[] properties, int userArg) {
+		for (int i = 0; i < properties.length; i++) {
+			if (properties[i] == null)
+				continue;
+			final IoTDevice device = properties[i].ioTInterface.device;
+			final Observer observer = device.observer;
+			if (observer == null)
+				continue;
+			// Each device is notified only once, with all of its properties in this batch
+			// (the properties of the same device are marked as handled, with null)
+			final BitSet changedProperties = device.changedProperties;
+			changedProperties.clear();
+			for (int j = i; j < properties.length; j++) {
+				if (properties[j] != null && properties[j].ioTInterface.device == device) {
+					changedProperties.set(device.propertyIndex(properties[j]));
+					if (j > i)
+						properties[j] = null;
+				}
+			}
+			observer.onPropertiesChange(device, changedProperties, userArg);
+		}
+	}
+
+	public void setObserver(Observer observer) {
+		this.observer = observer;
+	}
+
+	// Publishes the changes of all properties of this device (see IoTPublisher)
+	public IoTPublisher publisher() {
+		synchronized (ioTInterfaces) {
+			if (publisher == null)
+				publisher = new IoTPublisher(this, null);
+			return publisher;
+		}
+	}
+
+	IoTPublisher existingPublisher() {
+		return publisher;
+	}
+
+	// Properties are numbered densely, interface by interface, in the order the interfaces
+	// are described, so the index of a property never changes, even while other interfaces
+	// are still being described (this is the index used by Observer.onPropertiesChange(),
+	// and it is -1 if the interface has not been described yet)
+	public int propertyIndex(int interfaceIndex, int propertyIndex) {
+		final IoTInterface ioTInterface = ioTInterfaces[interfaceIndex];
+		return ((ioTInterface == null) ? -1 : (ioTInterface.firstPropertyIndex + propertyIndex));
+	}
+
+	public int propertyIndex(IoTProperty property) {
+		return property.ioTInterface.firstPropertyIndex + property.index;
+	}
+
+	// Returns null if index is out of range, or if its interface has not been described yet
+	public IoTProperty propertyAt(int index) {
+		final IoTProperty[] indexedProperties = this.indexedProperties;
+		return ((index < 0 || index >= indexedProperties.length) ? null : indexedProperties[index]);
+	}
+
+	@SecondaryThread
+	void storeExecuteResult_(int interfaceIndex, int command, byte[] payload, int payloadLength) {
+		if (interfaceIndex < ioTInterfaces.length &&
+			ioTInterfaces[interfaceIndex] != null &&
+			ioTInterfaces[interfaceIndex].executeReturnsProperties(command))
+			storePropertyChange_(payload, payloadLength, null);
+	}
+
+	// Stores the new values right away, leaving the notifications for later, and adds each
+	// property to changedProperties (if not null) only once, no matter how many times it changes
+	@SecondaryThread
+	void storePropertyChange_(byte[] payload, int payloadLength, ArrayList<IoTProperty> changedProperties) {
 		int payloadOffset = 0;
 		while ((payloadLength - payloadOffset) >= 4) {
 			final int interfaceIndex = (payload[payloadOffset++] & 0xFF);
@@ -203,14 +491,67 @@ public final class IoTDevice {
 			final int propertyPayloadLength = (payload[payloadOffset++] & 0xFF) | ((payload[payloadOffset++] & 0xFF) << 8);
 			if ((payloadOffset + propertyPayloadLength) > payloadLength)
 				break;
-			if (interfaceIndex < ioTInterfaces.length)
-				ioTInterfaces[interfaceIndex].handleProperty(propertyIndex, payload, payloadOffset, propertyPayloadLength, userArg);
+			final IoTProperty property = property_(interfaceIndex, propertyIndex);
+			if (property != null) {
+				property.storeReceivedValue_(payload, payloadOffset, propertyPayloadLength);
+				if (changedProperties != null && !property.conflatedChangePending) {
+					property.conflatedChangePending = true;
+					changedProperties.add(property);
+				}
+			}
 			payloadOffset += propertyPayloadLength;
 		}
 	}
 
 	int nextSequenceNumber() {
-		return (this.sequenceNumber = ((this.sequenceNumber + 1) & IoTMessage.MaximumSequenceNumber));
+		final int sequenceNumber = (this.sequenceNumber = ((this.sequenceNumber + 1) & IoTMessage.MaximumSequenceNumber));
+		final IoTSessionStore sessionStore = client.sessionStore();
+		if (sessionStore != null && --reservedSequenceNumbers <= 0)
+			sessionStore.save_(this);
+		return sequenceNumber;
+	}
+
+	// Called right before the device is published, to restore the session stored during
+	// a previous execution, if any
+	@SecondaryThread
+	void resumeSession_() {
+		final IoTSessionStore sessionStore = client.sessionStore();
+		sessionResumed = (sessionStore != null && sessionStore.resume_(this));
+	}
+
+	// Returns true if the device has forgotten a resumed session, or if it has been reset
+	// while there were subscribed properties, and a new handshake is needed (the handshake
+	// response then resubscribes the properties)
+	@SecondaryThread
+	boolean handleUnknownClient_() {
+		final IoTSessionStore sessionStore = client.sessionStore();
+		if (sessionStore != null)
+			sessionStore.remove_(this);
+		clientId = IoTMessage.InvalidClientId;
+		final boolean resumed = sessionResumed;
+		sessionResumed = false;
+		return (resumed || hasSubscribedProperties_());
+	}
+
+	@SecondaryThread
+	private boolean hasSubscribedProperties_() {
+		for (IoTInterface ioTInterface : ioTInterfaces) {
+			if (ioTInterface != null && ioTInterface.hasSubscribedProperties_())
+				return true;
+		}
+		return false;
+	}
+
+	@SecondaryThread
+	void handleHandshake_() {
+		sessionResumed = false;
+		final IoTSessionStore sessionStore = client.sessionStore();
+		if (sessionStore != null) {
+			if (clientId == IoTMessage.InvalidClientId)
+				sessionStore.remove_(this);
+			else
+				sessionStore.save_(this);
+		}
 	}
 
 	public int ioTInterfaceCount() {
@@ -221,6 +562,24 @@ public final class IoTDevice {
 		return ioTInterfaces[interfaceIndex];
 	}
 
+	boolean isGetPropertyRangeSupported() {
+		return getPropertyRangeSupported;
+	}
+
+	@SecondaryThread
+	void getPropertyRangeUnsupported_() {
+		getPropertyRangeSupported = false;
+	}
+
+	boolean isSetPropertyRangeSupported() {
+		return setPropertyRangeSupported;
+	}
+
+	@SecondaryThread
+	void setPropertyRangeUnsupported_() {
+		setPropertyRangeSupported = false;
+	}
+
 	public boolean isNameReadOnly() {
 		return ((flags & FlagNameReadOnly) != 0);
 	}
@@ -237,6 +596,31 @@ public final class IoTDevice {
 		return ((flags & FlagResetSupported) != 0);
 	}
 
+	public boolean isEncryptionRequired() {
+		return ((flags & FlagEncryptionRequired) != 0);
+	}
+
+	public boolean isEncrypted() {
+		return (session != null);
+	}
+
+	// Large payloads are compressed only when both sides support it (the client tells the
+	// device it supports compressed responses during the handshake)
+	public boolean isCompressionSupported() {
+		return ((flags & FlagCompressionSupported) != 0);
+	}
+
+	// A device is considered absent after not answering a keepalive ping (see
+	// IoTClient.setKeepAliveIdleTimeout()), until it answers any message again
+	public boolean isPresent() {
+		return present;
+	}
+
+	// Milliseconds elapsed since the last valid response from this device
+	public int getIdleTime() {
+		return (int)SystemClock.elapsedRealtime() - lastSeen;
+	}
+
 	public boolean needsHandshake() {
 		return (clientId == IoTMessage.InvalidClientId);
 	}
@@ -261,6 +645,12 @@ public final class IoTDevice {
 		return client.handshake(this, userArg);
 	}
 
+	public IoTFuture handshakeAsync() {
+		final IoTFuture future = new IoTFuture(this);
+		client.handshake(this, 0, future);
+		return future;
+	}
+
 	public boolean ping() {
 		return client.ping(this, 0);
 	}
@@ -269,6 +659,12 @@ public final class IoTDevice {
 		return client.ping(this, userArg);
 	}
 
+	public IoTFuture pingAsync() {
+		final IoTFuture future = new IoTFuture(this);
+		client.ping(this, 0, future);
+		return future;
+	}
+
 	public boolean reset() {
 		return client.reset(this, 0);
 	}
@@ -285,14 +681,63 @@ public final class IoTDevice {
 		return client.goodBye(this, userArg);
 	}
 
+	public IoTPropertyTransaction beginTransaction() {
+		return new IoTPropertyTransaction(this);
+	}
+
 	public boolean updateAllProperties() {
 		return updateAllProperties(0);
 	}
 
 	public boolean updateAllProperties(int userArg) {
-		boolean ok = true;
-		for (IoTInterface ioTInterface : ioTInterfaces)
-			ok &= ioTInterface.updateAllProperties(userArg);
-		return ok;
+		// All properties, of all interfaces, are requested with as few messages as possible
+		IoTProperty[] readableProperties = this.readableProperties;
+		if (readableProperties == null) {
+			final ArrayList<IoTProperty> properties = new ArrayList<>();
+			boolean complete = true;
+			for (IoTInterface ioTInterface : ioTInterfaces) {
+				// Only the interfaces described so far (see IoTClient.DiscoveryObserver)
+				if (ioTInterface == null) {
+					complete = false;
+					continue;
+				}
+				for (int i = 0; i < ioTInterface.propertyCount(); i++)
+					properties.add(ioTInterface.property(i));
+			}
+			readableProperties = readableProperties(properties.toArray(new IoTProperty[properties.size()]));
+			if (complete)
+				this.readableProperties = readableProperties;
+		}
+		return (readableProperties.length == 0 || client.getProperties(this, readableProperties, userArg));
+	}
+
+	public boolean updateProperties(IoTProperty[] properties) {
+		return updateProperties(properties, 0);
+	}
+
+	public boolean updateProperties(IoTProperty[] properties, int userArg) {
+		for (IoTProperty property : properties) {
+			if (property.ioTInterface.device != this)
+				throw new IllegalArgumentException("property.ioTInterface.device != this");
+		}
+		properties = readableProperties(properties);
+		return (properties.length == 0 || client.getProperties(this, properties, userArg));
+	}
+
+	static IoTProperty[] readableProperties(IoTProperty[] properties) {
+		int count = 0;
+		for (IoTProperty property : properties) {
+			if (property.mode != IoTProperty.ModeWriteOnly)
+				count++;
+		}
+		if (count == properties.length)
+			return properties.clone();
+		final IoTProperty[] readableProperties = new IoTProperty[count];
+		count = 0;
+		for (IoTProperty property : properties) {
+			if (property.mode != IoTProperty.ModeWriteOnly)
+				readableProperties[count++] = property;
+		}
+		return readableProperties;
 	}
 }
@@ -0,0 +1,194 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+// Description of the first device found with a given category and structure (200 identical
+// smart plugs, for example), used in two different ways:
+//
+// - Devices that attest to having the same description (through the description hash, see
+// IoTDevice.descriptionHash) are filled in from it, without any DescribeInterface/DescribeEnum
+// traffic, as interface names, property names, units and enums all come from those messages,
+// and matching flags, category and interface types alone do not mean they are all the same
+// - All other devices are described as usual, and only the enums of the interfaces whose
+// descriptions (including enums) are byte-for-byte identical to the template's are shared
+//
+// In both cases, names are already shared by IoTMessage.NameCache.
+//
+// Templates are used by the client thread and by the partitions (see IoTClient), always while
+// holding the lock of the templates map
+final class IoTDeviceTemplate {
+	private static final int UuidOffset = 1 + 16;
+	private static final int UuidLength = 16;
+
+	private final byte[] queryDevicePrefix;
+	private final long descriptionHash;
+	private final byte[][] interfaceDescriptions;
+	private final byte[][][] enumDescriptions; // [interface][property] (null for properties without enums)
+	private final IoTDevice source;
+	private IoTDeviceTemplate next; // Templates with the same category, but different structures/hashes
+
+	private IoTDeviceTemplate(byte[] queryDevicePrefix, long descriptionHash, byte[][] interfaceDescriptions, byte[][][] enumDescriptions, IoTDevice source) {
+		this.queryDevicePrefix = queryDevicePrefix;
+		this.descriptionHash = descriptionHash;
+		this.interfaceDescriptions = interfaceDescriptions;
+		this.enumDescriptions = enumDescriptions;
+		this.source = source;
+	}
+
+	// The uuid is the only part of the prefix that is expected to change among devices
+	private boolean matches(byte[] queryDevicePayload, int offset, int prefixLength, long descriptionHash) {
+		if (prefixLength != queryDevicePrefix.length || descriptionHash != this.descriptionHash)
+			return false;
+		for (int i = 0; i < prefixLength; i++) {
+			if (i == UuidOffset)
+				i += UuidLength;
+			if (queryDevicePrefix[i] != queryDevicePayload[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static IoTDeviceTemplate find(HashMap<UUID, IoTDeviceTemplate> templates, UUID categoryUuid, byte[] queryDevicePayload, int offset, int prefixLength, long descriptionHash) {
+		IoTDeviceTemplate template = templates.get(categoryUuid);
+		while (template != null && !template.matches(queryDevicePayload, offset, prefixLength, descriptionHash))
+			template = template.next;
+		return template;
+	}
+
+	// Only returns a template that can be used to fill in device (see instantiate_())
+	@SecondaryThread
+	static IoTDeviceTemplate find_(HashMap<UUID, IoTDeviceTemplate> templates, IoTDevice device, byte[] queryDevicePayload, int offset, int prefixLength) {
+		return ((device.descriptionHash == IoTDevice.NoDescriptionHash) ? null :
+			find(templates, device.categoryUuid, queryDevicePayload, offset, prefixLength, device.descriptionHash));
+	}
+
+	// Returns false if the device could not be completely filled in (in which case the
+	// device must be discarded and described again)
+	@SecondaryThread
+	boolean instantiate_(IoTDevice device) {
+		if (device.ioTInterfaceCount() != interfaceDescriptions.length)
+			return false;
+		for (byte[] interfaceDescription : interfaceDescriptions) {
+			final IoTInterface ioTInterface = IoTMessage.parseDescribeInterface_(device.client.nameCache, device, interfaceDescription, interfaceDescription.length);
+			if (ioTInterface == null ||
+				ioTInterface.index < 0 ||
+				ioTInterface.index >= device.ioTInterfaceCount())
+				return false;
+			device.ioTInterfaceDiscovered_(ioTInterface, false);
+		}
+		for (int i = interfaceDescriptions.length - 1; i >= 0; i--) {
+			if (!shareEnums(device, i))
+				return false;
+		}
+		return device.isComplete_();
+	}
+
+	private boolean shareEnums(IoTDevice device, int interfaceIndex) {
+		final IoTInterface ioTInterface = device.ioTInterface(interfaceIndex), sourceIoTInterface = source.ioTInterface(interfaceIndex);
+		if (ioTInterface == null || ioTInterface.propertyCount() != sourceIoTInterface.propertyCount())
+			return false;
+		for (int j = ioTInterface.propertyCount() - 1; j >= 0; j--)
+			ioTInterface.property(j).shareEnums_(sourceIoTInterface.property(j));
+		return true;
+	}
+
+	// Returns the descriptions of each interface, and of the enums of each property, found in
+	// records (or null if any interface is missing)
+	private static byte[][] interfaceDescriptions(int interfaceCount, ArrayList<byte[]> records, byte[][][] enumDescriptions) {
+		final byte[][] interfaceDescriptions = new byte[interfaceCount][];
+		for (int i = records.size() - 1; i > 0; i--) {
+			final byte[] record = records.get(i);
+			if (record.length < 2 || (record[1] & 0xFF) >= interfaceCount)
+				continue;
+			final int interfaceIndex = (record[1] & 0xFF);
+			if (record[0] == IoTMessage.MessageDescribeInterface) {
+				interfaceDescriptions[interfaceIndex] = Arrays.copyOfRange(record, 1, record.length);
+			} else if (record[0] == IoTMessage.MessageDescribeEnum && record.length > 2) {
+				final int propertyIndex = (record[2] & 0xFF);
+				byte[][] enums = enumDescriptions[interfaceIndex];
+				if (enums == null || enums.length <= propertyIndex)
+					enumDescriptions[interfaceIndex] = enums = ((enums == null) ? new byte[propertyIndex + 1][] : Arrays.copyOf(enums, propertyIndex + 1));
+				enums[propertyIndex] = Arrays.copyOfRange(record, 1, record.length);
+			}
+		}
+		for (byte[] interfaceDescription : interfaceDescriptions) {
+			if (interfaceDescription == null)
+				return null;
+		}
+		return interfaceDescriptions;
+	}
+
+	private static boolean enumDescriptionsEqual(byte[][] a, byte[][] b) {
+		final int length = Math.max((a == null) ? 0 : a.length, (b == null) ? 0 : b.length);
+		for (int i = 0; i < length; i++) {
+			if (!Arrays.equals((a == null || i >= a.length) ? null : a[i], (b == null || i >= b.length) ? null : b[i]))
+				return false;
+		}
+		return true;
+	}
+
+	// records must have been created by IoTDevice.recordDiscovery_()
+	@SecondaryThread
+	static void register_(HashMap<UUID, IoTDeviceTemplate> templates, IoTDevice device, ArrayList<byte[]> records) {
+		final byte[] firstRecord = records.get(0);
+		if (firstRecord[0] != IoTMessage.MessageQueryDevice)
+			return;
+		final int prefixLength = firstRecord.length - 1;
+
+		final byte[][][] enumDescriptions = new byte[device.ioTInterfaceCount()][][];
+		final byte[][] interfaceDescriptions = interfaceDescriptions(device.ioTInterfaceCount(), records, enumDescriptions);
+		if (interfaceDescriptions == null)
+			return;
+
+		final IoTDeviceTemplate existing = find(templates, device.categoryUuid, firstRecord, 1, prefixLength, device.descriptionHash);
+		if (existing != null) {
+			// This device has been described, so share only what is really identical
+			if (existing.source != device) {
+				for (int i = interfaceDescriptions.length - 1; i >= 0; i--) {
+					if (Arrays.equals(interfaceDescriptions[i], existing.interfaceDescriptions[i]) &&
+						enumDescriptionsEqual(enumDescriptions[i], existing.enumDescriptions[i]))
+						existing.shareEnums(device, i);
+				}
+			}
+			return;
+		}
+
+		final byte[] queryDevicePrefix = new byte[prefixLength];
+		System.arraycopy(firstRecord, 1, queryDevicePrefix, 0, prefixLength);
+		final IoTDeviceTemplate template = new IoTDeviceTemplate(queryDevicePrefix, device.descriptionHash, interfaceDescriptions, enumDescriptions, device);
+		template.next = templates.get(device.categoryUuid);
+		templates.put(device.categoryUuid, template);
+	}
+}
@@ -0,0 +1,264 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import android.content.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+// Opt-in cache (see IoTClient.setDiscoveryCache()) that stores the descriptions of devices
+// (the payloads of their DescribeInterface/DescribeEnum responses) on disk, keyed by the
+// device uuid, so that known devices can be published as soon as their QueryDevice response
+// arrives, without all the DescribeInterface/DescribeEnum round trips
+//
+// A cached description is only used if the beginning of the QueryDevice payload (flags,
+// category, uuid and interface types) still matches the one stored along with it, and if
+// the device's description hash (see IoTDevice.descriptionHash) is the same as before. As
+// older devices do not send that hash, their descriptions are only used while they are
+// younger than the maximum age (see setMaximumAge()), because a firmware update could have
+// changed names, units or enums without changing the interface types.
+//
+// File format (little endian):
+// magic (4 bytes) | version (1 byte) | description hash (8 bytes) | time saved (8 bytes) |
+// record count (2 bytes) | records (message type (1 byte), payload length (2 bytes), payload) |
+// CRC32 (4 bytes)
+// The first record is always the QueryDevice payload, up to the name (excluded)
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTDiscoveryCache {
+	private static final int Magic = 0x44546F49; // "IoTD"
+	private static final int Version = 2;
+	private static final int HeaderLength = 4 + 1 + 8 + 8 + 2;
+	private static final int MaxFileLength = 1024 * 1024;
+
+	public static final long DefaultMaximumAge = 24L * 60L * 60L * 1000L;
+
+	private final File directory;
+	private volatile long maximumAge = DefaultMaximumAge;
+
+	public IoTDiscoveryCache(Context context) {
+		this(new File(context.getApplicationContext().getCacheDir(), "IoTDiscoveryCache"));
+	}
+
+	public IoTDiscoveryCache(File directory) {
+		this.directory = directory;
+	}
+
+	// Only applies to devices that do not send a description hash (0 means their descriptions
+	// are never loaded from the cache)
+	public void setMaximumAge(long maximumAge) {
+		if (maximumAge < 0)
+			throw new IllegalArgumentException("maximumAge >= 0");
+		this.maximumAge = maximumAge;
+	}
+
+	public long getMaximumAge() {
+		return maximumAge;
+	}
+
+	public void clear() {
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+	}
+
+	private File file(IoTDevice device) {
+		return new File(directory, device.uuid.toString());
+	}
+
+	// Only the part of the QueryDevice payload that describes the device's structure
+	// (the name is left out, as it can be changed at any time)
+	static int queryDevicePrefixLength(byte[] payload, int payloadLength) {
+		final int prefixLength = 1 + 16 + 16 + 1 + (payload[1 + 16 + 16] & 0xFF);
+		return ((prefixLength > payloadLength) ? -1 : prefixLength);
+	}
+
+	private static int readShort(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8) | ((buffer[offset + 2] & 0xFF) << 16) | (buffer[offset + 3] << 24);
+	}
+
+	private static long readLong(byte[] buffer, int offset) {
+		return (readInt(buffer, offset) & 0xFFFFFFFFL) | ((long)readInt(buffer, offset + 4) << 32);
+	}
+
+	private static void writeShort(ByteArrayOutputStream outputStream, int value) {
+		outputStream.write(value);
+		outputStream.write(value >>> 8);
+	}
+
+	private static void writeInt(ByteArrayOutputStream outputStream, int value) {
+		outputStream.write(value);
+		outputStream.write(value >>> 8);
+		outputStream.write(value >>> 16);
+		outputStream.write(value >>> 24);
+	}
+
+	private static void writeLong(ByteArrayOutputStream outputStream, long value) {
+		writeInt(outputStream, (int)value);
+		writeInt(outputStream, (int)(value >>> 32));
+	}
+
+	// Fills in the device with its cached description, returning false if there is no valid
+	// description for it (in which case the device must be discarded and described again)
+	@SecondaryThread
+	boolean load_(IoTMessage.NameCache nameCache, IoTDevice device, byte[] queryDevicePayload, int queryDevicePayloadLength) {
+		final int prefixLength = queryDevicePrefixLength(queryDevicePayload, queryDevicePayloadLength);
+		if (prefixLength < 0)
+			return false;
+
+		final byte[] buffer;
+		try {
+			final File file = file(device);
+			if (!file.isFile())
+				return false;
+			final long length = file.length();
+			if (length < (HeaderLength + 4) || length > MaxFileLength)
+				return false;
+			buffer = new byte[(int)length];
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				randomAccessFile.readFully(buffer);
+			} finally {
+				randomAccessFile.close();
+			}
+		} catch (Throwable ex) {
+			return false;
+		}
+
+		final int end = buffer.length - 4;
+		final CRC32 crc32 = new CRC32();
+		crc32.update(buffer, 0, end);
+		if (readInt(buffer, 0) != Magic ||
+			buffer[4] != Version ||
+			readInt(buffer, end) != (int)crc32.getValue() ||
+			readLong(buffer, 5) != device.descriptionHash)
+			return false;
+
+		if (device.descriptionHash == IoTDevice.NoDescriptionHash) {
+			final long age = System.currentTimeMillis() - readLong(buffer, 5 + 8);
+			if (age < 0 || age >= maximumAge)
+				return false;
+		}
+
+		final int recordCount = readShort(buffer, 5 + 8 + 8);
+		int offset = HeaderLength;
+		for (int i = 0; i < recordCount; i++) {
+			if ((offset + 3) > end)
+				return false;
+			final int messageType = (buffer[offset] & 0xFF);
+			final int payloadLength = readShort(buffer, offset + 1);
+			offset += 3;
+			if ((offset + payloadLength) > end)
+				return false;
+			final byte[] payload = new byte[payloadLength];
+			System.arraycopy(buffer, offset, payload, 0, payloadLength);
+			offset += payloadLength;
+
+			switch (messageType) {
+			case IoTMessage.MessageQueryDevice:
+				if (i != 0 || payloadLength != prefixLength)
+					return false;
+				for (int j = 0; j < prefixLength; j++) {
+					if (payload[j] != queryDevicePayload[j])
+						return false;
+				}
+				break;
+			case IoTMessage.MessageDescribeInterface:
+				if (i == 0)
+					return false;
+				final IoTInterface ioTInterface = IoTMessage.parseDescribeInterface_(nameCache, device, payload, payloadLength);
+				if (ioTInterface == null ||
+					ioTInterface.index < 0 ||
+					ioTInterface.index >= device.ioTInterfaceCount())
+					return false;
+				// Enums are not described here, as they come in the next records
+				device.ioTInterfaceDiscovered_(ioTInterface, false);
+				break;
+			case IoTMessage.MessageDescribeEnum:
+				if (i == 0 || payloadLength < 3 || (payload[0] & 0xFF) >= device.ioTInterfaceCount() || device.ioTInterface(payload[0] & 0xFF) == null)
+					return false;
+				device.handleDescribeEnum_(IoTMessage.ResponseOK, payload, payloadLength);
+				break;
+			default:
+				return false;
+			}
+			// Keep the records, so this device can be used as a template (see IoTDeviceTemplate)
+			device.recordDiscovery_(messageType, payload, payloadLength);
+		}
+
+		return (offset == end && device.isComplete_());
+	}
+
+	@SecondaryThread
+	void save_(IoTDevice device, ArrayList<byte[]> records) {
+		try {
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+			writeInt(outputStream, Magic);
+			outputStream.write(Version);
+			writeLong(outputStream, device.descriptionHash);
+			writeLong(outputStream, System.currentTimeMillis());
+			writeShort(outputStream, records.size());
+			for (byte[] record : records) {
+				// Each record is made of its message type followed by its payload
+				outputStream.write(record[0]);
+				writeShort(outputStream, record.length - 1);
+				outputStream.write(record, 1, record.length - 1);
+			}
+			final CRC32 crc32 = new CRC32();
+			crc32.update(outputStream.toByteArray());
+			writeInt(outputStream, (int)crc32.getValue());
+
+			if (!directory.isDirectory() && !directory.mkdirs())
+				return;
+			// Write to a temporary file first, so a partially written file is never loaded
+			final File file = file(device), tmpFile = new File(directory, device.uuid.toString() + ".tmp");
+			final FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+			try {
+				outputStream.writeTo(fileOutputStream);
+			} finally {
+				fileOutputStream.close();
+			}
+			if (!tmpFile.renameTo(file))
+				tmpFile.delete();
+		} catch (Throwable ex) {
+			// Just ignore (the device will be described again next time)
+		}
+	}
+}
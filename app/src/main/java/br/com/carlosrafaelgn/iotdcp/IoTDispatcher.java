@@ -0,0 +1,136 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import android.os.Message;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+// Delivers the events produced by the client threads to the observers, when they are not
+// delivered in the main thread (see IoTClient.setDispatchDirect() and IoTClient.setDispatchExecutor())
+final class IoTDispatcher {
+	// Runs the events of a group of devices one after another, in the order they were
+	// produced, even if the executor itself runs tasks concurrently
+	private static final class Stripe implements Runnable {
+		private final IoTDispatcher dispatcher;
+		private final ArrayDeque<Message> messages = new ArrayDeque<>(16);
+		private boolean scheduled;
+
+		Stripe(IoTDispatcher dispatcher) {
+			this.dispatcher = dispatcher;
+		}
+
+		@MixedThreads
+		void enqueue_(Message msg) {
+			synchronized (messages) {
+				messages.addLast(msg);
+				if (scheduled)
+					return;
+				scheduled = true;
+			}
+			dispatcher.executor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				final Message msg;
+				synchronized (messages) {
+					if ((msg = messages.pollFirst()) == null) {
+						scheduled = false;
+						return;
+					}
+				}
+				dispatcher.handle_(msg);
+			}
+		}
+	}
+
+	private final IoTClient client;
+	private final Executor executor; // null means the events are handled by the threads that produce them
+	private final Stripe[] stripes; // null means the executor decides the order
+
+	IoTDispatcher(IoTClient client, Executor executor, int stripeCount) {
+		this.client = client;
+		this.executor = executor;
+		if (executor == null || stripeCount <= 0) {
+			stripes = null;
+		} else {
+			stripes = new Stripe[stripeCount];
+			for (int i = stripeCount - 1; i >= 0; i--)
+				stripes[i] = new Stripe(this);
+		}
+	}
+
+	@MixedThreads
+	private void handle_(Message msg) {
+		try {
+			client.handleDispatchedMessage_(msg);
+		} finally {
+			msg.recycle();
+		}
+	}
+
+	@MixedThreads
+	void dispatch_(final Message msg) {
+		if (executor == null) {
+			handle_(msg);
+		} else if (stripes == null) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					handle_(msg);
+				}
+			});
+		} else {
+			final IoTDevice device = deviceOf(msg.obj);
+			// Events not related to a single device (scans and scenes) always go to the first stripe
+			stripes[(device == null) ? 0 : ((device.hashCode() & 0x7FFFFFFF) % stripes.length)].enqueue_(msg);
+		}
+	}
+
+	private static IoTDevice deviceOf(Object obj) {
+		if (obj instanceof IoTDevice)
+			return (IoTDevice)obj;
+		if (obj instanceof IoTMessage)
+			return ((IoTMessage)obj).device;
+		if (obj instanceof IoTInterface)
+			return ((IoTInterface)obj).device;
+		if (obj instanceof IoTProperty)
+			return ((IoTProperty)obj).ioTInterface.device;
+		if (obj instanceof IoTSentMessage.Transfer)
+			return ((IoTSentMessage.Transfer)obj).property.ioTInterface.device;
+		// Conflated changes are dispatched separately for each device (see IoTClient)
+		if ((obj instanceof IoTProperty[]) && ((IoTProperty[])obj).length > 0)
+			return ((IoTProperty[])obj)[0].ioTInterface.device;
+		return null;
+	}
+}
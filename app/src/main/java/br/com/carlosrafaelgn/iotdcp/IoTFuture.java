@@ -0,0 +1,229 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+// Completed by the client thread, as soon as the response arrives (or the request times out),
+// after the property values carried by the response have been stored, but before the
+// observers are notified. The result is the response code (IoTMessage.ResponseXXX), or one of
+// the ResultXXX constants. Requests cannot be cancelled once they have been sent.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTFuture implements Future<Integer> {
+	public interface Listener {
+		// Called in the client thread (or in the thread that called addListener(), if the
+		// future had already been completed), so it must return quickly, and must not block
+		void onComplete(IoTFuture future);
+	}
+
+	// Same values used by IoTScene
+	public static final int ResultPending = IoTScene.ResultPending;
+	public static final int ResultTimeout = IoTScene.ResultTimeout;
+	public static final int ResultNotSent = IoTScene.ResultNotSent;
+
+	public final IoTDevice device; // null for futures created by all()
+
+	private int result = ResultPending;
+	private Listener listener;
+	private ArrayList<Listener> moreListeners;
+
+	IoTFuture(IoTDevice device) {
+		this.device = device;
+	}
+
+	// Completes with IoTMessage.ResponseOK only after all futures complete with
+	// IoTMessage.ResponseOK, otherwise, with the result of the first one that fails
+	public static IoTFuture all(final IoTFuture... futures) {
+		final IoTFuture all = new IoTFuture(null);
+		if (futures.length == 0) {
+			all.complete_(IoTMessage.ResponseOK);
+			return all;
+		}
+		final Listener listener = new Listener() {
+			private int remaining = futures.length;
+
+			@Override
+			public void onComplete(IoTFuture future) {
+				final int result = future.result();
+				final boolean last;
+				synchronized (this) {
+					last = (--remaining == 0);
+				}
+				if (result != IoTMessage.ResponseOK)
+					all.complete_(result);
+				else if (last)
+					all.complete_(IoTMessage.ResponseOK);
+			}
+		};
+		for (IoTFuture future : futures)
+			future.addListener(listener);
+		return all;
+	}
+
+	// Returns false if the future had already been completed
+	@MixedThreads
+	boolean complete_(int result) {
+		final Listener listener;
+		final ArrayList<Listener> moreListeners;
+		synchronized (this) {
+			if (this.result != ResultPending)
+				return false;
+			this.result = result;
+			listener = this.listener;
+			moreListeners = this.moreListeners;
+			this.listener = null;
+			this.moreListeners = null;
+		}
+		if (listener != null)
+			listener.onComplete(this);
+		if (moreListeners != null) {
+			for (Listener l : moreListeners)
+				l.onComplete(this);
+		}
+		return true;
+	}
+
+	// Completes this future with the same result as future, as soon as it completes (used when
+	// a request is replaced by a newer, similar request, see IoTDevice)
+	@SecondaryThread
+	void completeWith_(IoTFuture future) {
+		future.addListener(new Listener() {
+			@Override
+			public void onComplete(IoTFuture future) {
+				complete_(future.result());
+			}
+		});
+	}
+
+	public IoTFuture addListener(Listener listener) {
+		synchronized (this) {
+			if (result == ResultPending) {
+				if (this.listener == null) {
+					this.listener = listener;
+				} else {
+					if (moreListeners == null)
+						moreListeners = new ArrayList<>(4);
+					moreListeners.add(listener);
+				}
+				return this;
+			}
+		}
+		listener.onComplete(this);
+		return this;
+	}
+
+	// Does nothing if the listener has already been called
+	private void removeListener(Listener listener) {
+		synchronized (this) {
+			if (this.listener == listener)
+				this.listener = ((moreListeners == null || moreListeners.isEmpty()) ? null : moreListeners.remove(0));
+			else if (moreListeners != null)
+				moreListeners.remove(listener);
+		}
+	}
+
+	public int result() {
+		synchronized (this) {
+			return result;
+		}
+	}
+
+	public boolean isSuccessful() {
+		return (result() == IoTMessage.ResponseOK);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return (result() != ResultPending);
+	}
+
+	// Must not be called in the thread that handles the observers' events if it is the
+	// client thread (see IoTClient.setDispatchDirect())
+	@Override
+	public Integer get() throws InterruptedException {
+		await(-1);
+		return result();
+	}
+
+	@Override
+	public Integer get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if (!await(unit.toNanos(timeout)))
+			throw new TimeoutException();
+		return result();
+	}
+
+	// Parks the calling thread, instead of waiting on a monitor, so virtual threads do not pin
+	// their carrier threads while waiting (timeout < 0 means no timeout)
+	boolean await(long timeoutNanos) throws InterruptedException {
+		if (isDone())
+			return true;
+		final Thread thread = Thread.currentThread();
+		final Listener unparker = new Listener() {
+			@Override
+			public void onComplete(IoTFuture future) {
+				LockSupport.unpark(thread);
+			}
+		};
+		addListener(unparker);
+		try {
+			final long deadline = System.nanoTime() + timeoutNanos;
+			while (!isDone()) {
+				if (timeoutNanos < 0) {
+					LockSupport.park(this);
+				} else {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						return false;
+					LockSupport.parkNanos(this, remaining);
+				}
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+			return true;
+		} finally {
+			// Otherwise, a thread that gave up waiting would still be unparked later
+			removeListener(unparker);
+		}
+	}
+}
@@ -45,6 +45,10 @@ public abstract class IoTInterface {
 	public Object userTag;
 
 	private final IoTProperty[] properties;
+	private IoTProperty[] readableProperties;
+	// Index of the first property of this interface among all properties of the device,
+	// assigned when this interface is described (see IoTDevice.propertyIndex())
+	int firstPropertyIndex;
 
 	public IoTInterface(IoTDevice device, int index, String name, int type, IoTProperty[] properties) {
 		this.device = device;
@@ -83,6 +87,27 @@ public abstract class IoTInterface {
 			properties[propertyIndex].handleDescribeEnum_(responseCode, payload, payloadLength);
 	}
 
+	@SecondaryThread
+	final void resubscribeProperties_() {
+		for (IoTProperty ioTProperty : properties)
+			ioTProperty.resubscribe_();
+	}
+
+	@SecondaryThread
+	final boolean hasSubscribedProperties_() {
+		for (IoTProperty ioTProperty : properties) {
+			if (ioTProperty.isSubscribed())
+				return true;
+		}
+		return false;
+	}
+
+	@SecondaryThread
+	final void handleSubscribe_(int propertyIndex, boolean subscribe, int responseCode) {
+		if (propertyIndex >= 0 && propertyIndex < properties.length)
+			properties[propertyIndex].handleSubscribe_(subscribe, responseCode);
+	}
+
 	final boolean execute(int command) {
 		return device.client.execute(this, command, 0);
 	}
@@ -91,12 +116,23 @@ public abstract class IoTInterface {
 		return device.client.execute(this, command, userArg);
 	}
 
-	void handleExecute(int responseCode, int command, byte[] payload, int payloadLength, int userArg) {
+	final IoTFuture executeAsync(int command) {
+		final IoTFuture future = new IoTFuture(device);
+		device.client.execute(this, command, 0, future);
+		return future;
 	}
 
-	void handleProperty(int propertyIndex, byte[] payload, int payloadOffset, int payloadLength, int userArg) {
-		if (propertyIndex < properties.length)
-			properties[propertyIndex].handleProperty(payload, payloadOffset, payloadLength, userArg);
+	// Whether the response to command carries the new values of the properties, just like
+	// the response to MessageGetProperty
+	@MixedThreads
+	boolean executeReturnsProperties(int command) {
+		return false;
+	}
+
+	// The values carried by the response have already been stored by the client thread
+	void handleExecute(int responseCode, int command, byte[] payload, int payloadLength, int userArg) {
+		if (responseCode == IoTMessage.ResponseOK && executeReturnsProperties(command))
+			device.notifyPropertyChanges(payload, payloadLength, userArg);
 	}
 
 	public final int propertyCount() {
@@ -112,9 +148,9 @@ public abstract class IoTInterface {
 	}
 
 	public final boolean updateAllProperties(int userArg) {
-		boolean ok = true;
-		for (IoTProperty property : properties)
-			ok &= property.updateValue(userArg);
-		return ok;
+		// All properties are requested with a single message
+		if (readableProperties == null)
+			readableProperties = IoTDevice.readableProperties(properties);
+		return (readableProperties.length == 0 || device.client.getProperties(device, readableProperties, userArg));
 	}
 }
@@ -42,19 +42,22 @@ public final class IoTInterfaceOnOff extends IoTInterface {
 	public static final int StateTurningOff = 0x03;
 	public static final int StateTurningOn = 0x04;
 
+	// Shared by all instances (enums are immutable)
+	private static final IoTProperty.Enums StateEnums = new IoTProperty.Enums(
+		new IoTProperty.Enum("Unknown", StateUnknown),
+		new IoTProperty.Enum("Off", StateOff),
+		new IoTProperty.Enum("On", StateOn),
+		new IoTProperty.Enum("Turning Off", StateTurningOff),
+		new IoTProperty.Enum("Turning On", StateTurningOn)
+	);
+
 	public final IoTProperty state;
 
 	@SecondaryThread
 	static IoTInterfaceOnOff create_(IoTDevice device, int index, String name, IoTProperty[] properties) {
 		if (properties.length < 1 || !properties[0].isReadableEnum8_())
 			return null;
-		properties[0].handleDescribeEnum_(new IoTProperty.Enum[] {
-			new IoTProperty.Enum("Unknown", StateUnknown),
-			new IoTProperty.Enum("Off", StateOff),
-			new IoTProperty.Enum("On", StateOn),
-			new IoTProperty.Enum("Turning Off", StateTurningOff),
-			new IoTProperty.Enum("Turning On", StateTurningOn)
-		});
+		properties[0].handleDescribeEnum_(StateEnums);
 		return new IoTInterfaceOnOff(device, index, name, properties);
 	}
 
@@ -66,19 +69,23 @@ public final class IoTInterfaceOnOff extends IoTInterface {
 	}
 
 	@Override
-	void handleExecute(int responseCode, int command, byte[] payload, int payloadLength, int userArg) {
-		if (command != CommandOff && command != CommandOn)
-			return;
-
-		if (responseCode == IoTMessage.ResponseOK)
-			device.handleProperty(payload, payloadLength, userArg);
+	boolean executeReturnsProperties(int command) {
+		return (command == CommandOff || command == CommandOn);
 	}
 
 	public boolean executeOff() {
 		return execute(CommandOff);
 	}
 
+	public IoTFuture executeOffAsync() {
+		return executeAsync(CommandOff);
+	}
+
 	public boolean executeOn() {
 		return execute(CommandOn);
 	}
+
+	public IoTFuture executeOnAsync() {
+		return executeAsync(CommandOn);
+	}
 }
@@ -41,19 +41,22 @@ public final class IoTInterfaceOnOffSimple extends IoTInterface {
 	public static final int StateTurningOff = 0x03;
 	public static final int StateTurningOn = 0x04;
 
+	// Shared by all instances (enums are immutable)
+	private static final IoTProperty.Enums StateEnums = new IoTProperty.Enums(
+		new IoTProperty.Enum("Unknown", StateUnknown),
+		new IoTProperty.Enum("Off", StateOff),
+		new IoTProperty.Enum("On", StateOn),
+		new IoTProperty.Enum("Turning Off", StateTurningOff),
+		new IoTProperty.Enum("Turning On", StateTurningOn)
+	);
+
 	public final IoTProperty state;
 
 	@SecondaryThread
 	static IoTInterfaceOnOffSimple create_(IoTDevice device, int index, String name, IoTProperty[] properties) {
 		if (properties.length < 1 || !properties[0].isReadableEnum8_())
 			return null;
-		properties[0].handleDescribeEnum_(new IoTProperty.Enum[] {
-			new IoTProperty.Enum("Unknown", StateUnknown),
-			new IoTProperty.Enum("Off", StateOff),
-			new IoTProperty.Enum("On", StateOn),
-			new IoTProperty.Enum("Turning Off", StateTurningOff),
-			new IoTProperty.Enum("Turning On", StateTurningOn)
-		});
+		properties[0].handleDescribeEnum_(StateEnums);
 		return new IoTInterfaceOnOffSimple(device, index, name, properties);
 	}
 
@@ -65,15 +68,15 @@ public final class IoTInterfaceOnOffSimple extends IoTInterface {
 	}
 
 	@Override
-	void handleExecute(int responseCode, int command, byte[] payload, int payloadLength, int userArg) {
-		if (command != CommandOnOff)
-			return;
-
-		if (responseCode == IoTMessage.ResponseOK)
-			device.handleProperty(payload, payloadLength, userArg);
+	boolean executeReturnsProperties(int command) {
+		return (command == CommandOnOff);
 	}
 
 	public boolean executeOnOff() {
 		return execute(CommandOnOff);
 	}
+
+	public IoTFuture executeOnOffAsync() {
+		return executeAsync(CommandOnOff);
+	}
 }
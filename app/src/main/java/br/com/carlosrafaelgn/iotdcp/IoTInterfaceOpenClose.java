@@ -42,19 +42,22 @@ public final class IoTInterfaceOpenClose extends IoTInterface {
 	public static final int StateClosing = 0x03;
 	public static final int StateOpening = 0x04;
 
+	// Shared by all instances (enums are immutable)
+	private static final IoTProperty.Enums StateEnums = new IoTProperty.Enums(
+		new IoTProperty.Enum("Unknown", StateUnknown),
+		new IoTProperty.Enum("Closed", StateClosed),
+		new IoTProperty.Enum("Open", StateOpen),
+		new IoTProperty.Enum("Closing", StateClosing),
+		new IoTProperty.Enum("Opening", StateOpening)
+	);
+
 	public final IoTProperty state;
 
 	@SecondaryThread
 	static IoTInterfaceOpenClose create_(IoTDevice device, int index, String name, IoTProperty[] properties) {
 		if (properties.length < 1 || !properties[0].isReadableEnum8_())
 			return null;
-		properties[0].handleDescribeEnum_(new IoTProperty.Enum[] {
-			new IoTProperty.Enum("Unknown", StateUnknown),
-			new IoTProperty.Enum("Closed", StateClosed),
-			new IoTProperty.Enum("Open", StateOpen),
-			new IoTProperty.Enum("Closing", StateClosing),
-			new IoTProperty.Enum("Opening", StateOpening)
-		});
+		properties[0].handleDescribeEnum_(StateEnums);
 		return new IoTInterfaceOpenClose(device, index, name, properties);
 	}
 
@@ -66,19 +69,23 @@ public final class IoTInterfaceOpenClose extends IoTInterface {
 	}
 
 	@Override
-	void handleExecute(int responseCode, int command, byte[] payload, int payloadLength, int userArg) {
-		if (command != CommandClose && command != CommandOpen)
-			return;
-
-		if (responseCode == IoTMessage.ResponseOK)
-			device.handleProperty(payload, payloadLength, userArg);
+	boolean executeReturnsProperties(int command) {
+		return (command == CommandClose || command == CommandOpen);
 	}
 
 	public boolean executeClose() {
 		return execute(CommandClose);
 	}
 
+	public IoTFuture executeCloseAsync() {
+		return executeAsync(CommandClose);
+	}
+
 	public boolean executeOpen() {
 		return execute(CommandOpen);
 	}
+
+	public IoTFuture executeOpenAsync() {
+		return executeAsync(CommandOpen);
+	}
 }
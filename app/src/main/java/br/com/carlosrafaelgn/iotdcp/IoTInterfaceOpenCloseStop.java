@@ -45,21 +45,24 @@ public final class IoTInterfaceOpenCloseStop extends IoTInterface {
 	public static final int StatePartiallyClosed = 0x05;
 	public static final int StatePartiallyOpen = 0x06;
 
+	// Shared by all instances (enums are immutable)
+	private static final IoTProperty.Enums StateEnums = new IoTProperty.Enums(
+		new IoTProperty.Enum("Unknown", StateUnknown),
+		new IoTProperty.Enum("Closed", StateClosed),
+		new IoTProperty.Enum("Open", StateOpen),
+		new IoTProperty.Enum("Closing", StateClosing),
+		new IoTProperty.Enum("Opening", StateOpening),
+		new IoTProperty.Enum("Partially Closed", StatePartiallyClosed),
+		new IoTProperty.Enum("Partially Open", StatePartiallyOpen)
+	);
+
 	public final IoTProperty state;
 
 	@SecondaryThread
 	static IoTInterfaceOpenCloseStop create_(IoTDevice device, int index, String name, IoTProperty[] properties) {
 		if (properties.length < 1 || !properties[0].isReadableEnum8_())
 			return null;
-		properties[0].handleDescribeEnum_(new IoTProperty.Enum[] {
-			new IoTProperty.Enum("Unknown", StateUnknown),
-			new IoTProperty.Enum("Closed", StateClosed),
-			new IoTProperty.Enum("Open", StateOpen),
-			new IoTProperty.Enum("Closing", StateClosing),
-			new IoTProperty.Enum("Opening", StateOpening),
-			new IoTProperty.Enum("Partially Closed", StatePartiallyClosed),
-			new IoTProperty.Enum("Partially Open", StatePartiallyOpen)
-		});
+		properties[0].handleDescribeEnum_(StateEnums);
 		return new IoTInterfaceOpenCloseStop(device, index, name, properties);
 	}
 
@@ -71,23 +74,31 @@ public final class IoTInterfaceOpenCloseStop extends IoTInterface {
 	}
 
 	@Override
-	void handleExecute(int responseCode, int command, byte[] payload, int payloadLength, int userArg) {
-		if (command != CommandClose && command != CommandOpen && command != CommandStop)
-			return;
-
-		if (responseCode == IoTMessage.ResponseOK)
-			device.handleProperty(payload, payloadLength, userArg);
+	boolean executeReturnsProperties(int command) {
+		return (command == CommandClose || command == CommandOpen || command == CommandStop);
 	}
 
 	public boolean executeClose() {
 		return execute(CommandClose);
 	}
 
+	public IoTFuture executeCloseAsync() {
+		return executeAsync(CommandClose);
+	}
+
 	public boolean executeOpen() {
 		return execute(CommandOpen);
 	}
 
+	public IoTFuture executeOpenAsync() {
+		return executeAsync(CommandOpen);
+	}
+
 	public boolean executeStop() {
 		return execute(CommandStop);
 	}
+
+	public IoTFuture executeStopAsync() {
+		return executeAsync(CommandStop);
+	}
 }
@@ -30,6 +30,7 @@
 package br.com.carlosrafaelgn.iotdcp;
 
 import java.net.SocketAddress;
+import java.nio.charset.Charset;
 import java.util.UUID;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
@@ -72,6 +73,7 @@ public final class IoTMessage {
 				message.payload = null;
 				message.device = null;
 				message.password = null;
+				message.sceneMember = false;
 
 				for (int i = MaxCacheSize - 1; i >= 0; i--) {
 					// Try to return this message at the first available spot
@@ -103,10 +105,16 @@ public final class IoTMessage {
 				actualPayloadLength != payloadLength)
 				return null;
 
-			final byte[] payload;
+			byte[] payload;
 
 			if (payloadLength == 0) {
 				payload = emptyPayload;
+			} else if ((message & MessageFlagCompressed) != 0) {
+				// The device only compresses payloads after we have told it
+				// we support compression during the handshake
+				if ((payload = IoTCompression.decompress_(srcBuffer, ResponseHeaderLength, payloadLength)) == null)
+					return null;
+				return create_(message & ~MessageFlagCompressed, clientId, sequenceNumber, responseCode, payload.length, (payload.length == 0) ? emptyPayload : payload);
 			} else {
 				payload = new byte[payloadLength];
 				System.arraycopy(srcBuffer, ResponseHeaderLength, payload, 0, payloadLength);
@@ -114,10 +122,109 @@ public final class IoTMessage {
 
 			return create_(message, clientId, sequenceNumber, responseCode, payloadLength, payload);
 		}
+
+		// Decrypts an encrypted response in place, so it can be parsed by parseResponse_(),
+		// returning the new length of the response, or -1 if it is not valid
+		@SecondaryThread
+		static int decryptResponse_(IoTSession session, byte[] srcBuffer, int length) {
+			if (length < (ResponseHeaderLength + EndOfPacketLength) ||
+				srcBuffer[length - 1] != EndOfPacket ||
+				((srcBuffer[6] & 0xFF) | ((srcBuffer[7] & 0xFF) << 8)) != (length - (ResponseHeaderLength + EndOfPacketLength)))
+				return -1;
+
+			final int payloadLength = session.decrypt_(srcBuffer, ResponseHeaderLength, length - (ResponseHeaderLength + EndOfPacketLength));
+			if (payloadLength < 0)
+				return -1;
+
+			// The flag is only cleared after the tag has been verified, because it is authenticated
+			srcBuffer[1] &= ~MessageFlagEncrypted;
+			srcBuffer[6] = (byte)payloadLength;
+			srcBuffer[7] = (byte)(payloadLength >>> 8);
+			srcBuffer[ResponseHeaderLength + payloadLength] = EndOfPacket;
+			return ResponseHeaderLength + payloadLength + EndOfPacketLength;
+		}
 	}
 
+	// Interface, property, enum and device names are repeated over and over among devices of
+	// the same kind, so they are decoded only once, and the same String instance is shared
+	static final class NameCache {
+		private static final int MaxNameLength = 64;
+		private static final int MaxEntryCount = 4096;
+		private byte[][] names = new byte[256][];
+		private String[] strings = new String[256];
+		private int count;
+
+		private static int hash(byte[] buffer, int offset, int length) {
+			int h = length;
+			for (int i = 0; i < length; i++)
+				h = (h * 31) + buffer[offset + i];
+			return h ^ (h >>> 16);
+		}
+
+		private static boolean equals(byte[] name, byte[] buffer, int offset, int length) {
+			if (name.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (name[i] != buffer[offset + i])
+					return false;
+			}
+			return true;
+		}
+
+		@SecondaryThread
+		private void grow_() {
+			final byte[][] oldNames = names;
+			final String[] oldStrings = strings;
+			names = new byte[oldNames.length << 1][];
+			strings = new String[oldNames.length << 1];
+			final int mask = names.length - 1;
+			for (int i = oldNames.length - 1; i >= 0; i--) {
+				final byte[] name = oldNames[i];
+				if (name == null)
+					continue;
+				int index = hash(name, 0, name.length) & mask;
+				while (names[index] != null)
+					index = (index + 1) & mask;
+				names[index] = name;
+				strings[index] = oldStrings[i];
+			}
+		}
+
+		@SecondaryThread
+		synchronized String decode_(byte[] buffer, int offset, int length) {
+			if (length == 0)
+				return "";
+			if (length > MaxNameLength)
+				return new String(buffer, offset, length, UTF8);
+			final int mask = names.length - 1;
+			int index = hash(buffer, offset, length) & mask;
+			byte[] name;
+			while ((name = names[index]) != null) {
+				if (equals(name, buffer, offset, length))
+					return strings[index];
+				index = (index + 1) & mask;
+			}
+			final String string = new String(buffer, offset, length, UTF8);
+			if (count >= MaxEntryCount)
+				return string;
+			name = new byte[length];
+			System.arraycopy(buffer, offset, name, 0, length);
+			names[index] = name;
+			strings[index] = string;
+			// Keep the load factor below 0.5
+			if (++count >= (names.length >> 1))
+				grow_();
+			return string;
+		}
+	}
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
 	static final int MaxPayloadLength = 32768;
 	static final int MaxPasswordLength = 64;
+	// Values larger than this are split into chunks, keeping datagrams below the usual
+	// 1500-byte MTU, to avoid IP fragmentation (where one lost fragment loses the whole datagram)
+	static final int MaxChunkLength = 1024;
 
 	static final int InvalidClientId = 255;
 
@@ -126,6 +233,11 @@ public final class IoTMessage {
 	static final int MessageTimeout = -1; // Java only (does not come from devices)
 	static final int MessageException = -2; // Java only (does not come from devices)
 	static final int MessageSent = -3; // Java only (does not come from devices)
+	static final int MessageDeviceFound = -4; // Java only (does not come from devices)
+	static final int MessageInterfaceDescribed = -5; // Java only (does not come from devices)
+	static final int MessagePresenceChanged = -6; // Java only (does not come from devices)
+	static final int MessageSceneFinished = -7; // Java only (does not come from devices)
+	static final int MessagePropertyChanges = -8; // Java only (does not come from devices)
 	public static final int MessageQueryDevice = 0x00;
 	public static final int MessageDescribeInterface = 0x01;
 	public static final int MessageDescribeEnum = 0x02;
@@ -138,9 +250,22 @@ public final class IoTMessage {
 	public static final int MessageExecute = 0x09;
 	public static final int MessageGetProperty = 0x0A;
 	public static final int MessageSetProperty = 0x0B;
+	public static final int MessageSubscribeProperty = 0x0C;
+	public static final int MessageUnsubscribeProperty = 0x0D;
+	public static final int MessageSetPropertyRange = 0x0E;
+	public static final int MessageGetPropertyRange = 0x0F;
 
 	static final int ServerMessagePropertyChange = 0x80;
 
+	// OR'ed with the message type when the payload has been compressed (see IoTCompression)
+	static final int MessageFlagCompressed = 0x40;
+	// OR'ed with the message type when the payload has been encrypted (see IoTSession)
+	static final int MessageFlagEncrypted = 0x20;
+	// Sent as the first byte of the payload of MessageHandshake to devices with
+	// IoTDevice.FlagCompressionSupported and/or IoTDevice.FlagEncryptionRequired
+	static final int HandshakeFlagCompression = 0x01;
+	static final int HandshakeFlagEncryption = 0x02;
+
 	public static final int ResponseOK = 0x00;
 	public static final int ResponseDeviceError = 0x01;
 	public static final int ResponseUnknownClient = 0x02;
@@ -174,6 +299,7 @@ public final class IoTMessage {
 	byte[] payload;
 	IoTDevice device;
 	byte[] password;
+	boolean sceneMember; // Responses to members of an IoTScene are not reported to the observer
 
 	@SecondaryThread
 	private IoTMessage() {
@@ -219,9 +345,14 @@ public final class IoTMessage {
 		final int nameLen = (payload[srcOffset++] & 0xFF);
 		if ((nameLen + srcOffset) > payloadLength)
 			return null;
-		final String name = ((nameLen == 0) ? "IoT" : new String(payload, srcOffset, nameLen));
-
-		return new IoTDevice(client, socketAddress, flags, new UUID(mostSigBitsCategory, leastSigBitsCategory), new UUID(mostSigBits, leastSigBits), name, new IoTInterface[interfaceCount]);
+		final String name = ((nameLen == 0) ? "IoT" : client.nameCache.decode_(payload, srcOffset, nameLen));
+		srcOffset += nameLen;
+
+		final IoTDevice device = new IoTDevice(client, socketAddress, flags, new UUID(mostSigBitsCategory, leastSigBitsCategory), new UUID(mostSigBits, leastSigBits), name, new IoTInterface[interfaceCount]);
+		// Older devices do not send the description hash (see IoTDevice.descriptionHash)
+		if ((srcOffset + 4) <= payloadLength)
+			device.descriptionHash = ((payload[srcOffset] & 0xFF) | ((payload[srcOffset + 1] & 0xFF) << 8) | ((payload[srcOffset + 2] & 0xFF) << 16) | ((payload[srcOffset + 3] & 0xFF) << 24)) & 0xFFFFFFFFL;
+		return device;
 	}
 
 	@SecondaryThread
@@ -230,6 +361,12 @@ public final class IoTMessage {
 			responseCode != IoTMessage.ResponseOK)
 			return null;
 
+		return parseDescribeInterface_(device.client.nameCache, device, payload, payloadLength);
+	}
+
+	// Also used to parse descriptions loaded from IoTDiscoveryCache
+	@SecondaryThread
+	static IoTInterface parseDescribeInterface_(NameCache nameCache, IoTDevice device, byte[] payload, int payloadLength) {
 		try {
 			int srcOffset = 0;
 
@@ -238,7 +375,7 @@ public final class IoTMessage {
 			final int nameLen = (payload[srcOffset++] & 0xFF);
 			if ((nameLen + srcOffset) > payloadLength)
 				return null;
-			final String name = new String(payload, srcOffset, nameLen);
+			final String name = nameCache.decode_(payload, srcOffset, nameLen);
 			srcOffset += nameLen;
 
 			final int type = (payload[srcOffset++] & 0xFF);
@@ -250,7 +387,7 @@ public final class IoTMessage {
 				final int propertyNameLen = (payload[srcOffset++] & 0xFF);
 				if ((propertyNameLen + srcOffset) > payloadLength)
 					return null;
-				final String propertyName = new String(payload, srcOffset, propertyNameLen);
+				final String propertyName = nameCache.decode_(payload, srcOffset, propertyNameLen);
 				srcOffset += propertyNameLen;
 
 				properties[i] = new IoTProperty(i,
@@ -286,9 +423,22 @@ public final class IoTMessage {
 	int parseHandshake_() {
 		if (clientId != IoTMessage.InvalidClientId ||
 			responseCode != IoTMessage.ResponseOK ||
-			payloadLength != 1)
+			payloadLength < 1)
 			return IoTMessage.InvalidClientId;
 
 		return payload[0] & 0xFF;
 	}
+
+	// Devices that accepted the encryption requested during the handshake append their
+	// own nonce to the client id
+	@SecondaryThread
+	IoTSession parseHandshakeSession_(IoTDevice device, IoTSession pendingSession) {
+		if (pendingSession == null ||
+			device.clientId == IoTMessage.InvalidClientId ||
+			payloadLength < (1 + IoTSession.NonceLength) ||
+			!pendingSession.establish_(device.password, device.clientId, payload, 1))
+			return null;
+
+		return pendingSession;
+	}
 }
@@ -31,18 +31,38 @@ package br.com.carlosrafaelgn.iotdcp;
 
 import android.util.SparseArray;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 public final class IoTProperty {
 	static final class Buffer {
-		final byte[] buffer;
+		final int maxLength;
 		int length;
+		// Only allocated when the value is first used, as many properties are never touched
+		// by the application (both must be accessed while holding the lock on this buffer)
+		private byte[] buffer;
+		private ByteBuffer view;
 
 		Buffer(int maxLength) {
-			buffer = new byte[maxLength];
+			this.maxLength = maxLength;
+		}
+
+		byte[] bytes() {
+			if (buffer == null)
+				buffer = new byte[maxLength];
+			return buffer;
+		}
+
+		// Little endian view of the bytes
+		ByteBuffer view() {
+			if (view == null)
+				view = ByteBuffer.wrap(bytes()).order(ByteOrder.LITTLE_ENDIAN);
+			return view;
 		}
 	}
 
@@ -71,6 +91,53 @@ public final class IoTProperty {
 		}
 	}
 
+	// Immutable, so it can be shared among all properties with the same enums (such as the
+	// properties of the built-in interfaces, or of devices with the same description)
+	static final class Enums {
+		final List<Enum> byOrder;
+		private final SparseArray<Enum> byValue;
+		private final Enum[] denseByValue; // Used instead of byValue when the values are (almost) contiguous
+		private final int denseFirstValue;
+
+		Enums(Enum... enums) {
+			final SparseArray<Enum> sparseArray = new SparseArray<>(enums.length);
+			final ArrayList<Enum> list = new ArrayList<>(enums.length);
+			int minValue = Integer.MAX_VALUE, maxValue = Integer.MIN_VALUE;
+			for (Enum e : enums) {
+				list.add(e);
+				sparseArray.put(e.value, e);
+				if (minValue > e.value)
+					minValue = e.value;
+				if (maxValue < e.value)
+					maxValue = e.value;
+			}
+
+			// Small ranges, with only a few gaps, can be looked up directly, without a binary search
+			final long range = (long)maxValue - (long)minValue + 1;
+			if (enums.length > 0 && range <= (long)(enums.length + MaxDenseEnumGap)) {
+				final Enum[] dense = new Enum[(int)range];
+				for (Enum e : enums)
+					dense[e.value - minValue] = e;
+				denseFirstValue = minValue;
+				denseByValue = dense;
+			} else {
+				denseFirstValue = 0;
+				denseByValue = null;
+			}
+
+			byOrder = Collections.unmodifiableList(list);
+			byValue = sparseArray;
+		}
+
+		Enum get(int value) {
+			final Enum[] dense = denseByValue;
+			if (dense == null)
+				return byValue.get(value);
+			value -= denseFirstValue;
+			return ((value >= 0 && value < dense.length) ? dense[value] : null);
+		}
+	}
+
 	public interface Observer {
 		void onPropertyChange(IoTInterface ioTInterface, IoTProperty property, int userArg);
 	}
@@ -143,6 +210,18 @@ public final class IoTProperty {
 	public static final int IECZebi = 0x79; // 2^70
 	public static final int IECYobi = 0x78; // 2^80
 
+	private static final int MaxDenseEnumGap = 8;
+	private static final int MaxDirtyRanges = 8;
+
+	private static final double[] DecimalMultipliers = new double[61]; // 10^-30 ... 10^30
+
+	static {
+		// Parsing the literals (instead of calling Math.pow()) produces the
+		// correctly rounded values for the negative powers
+		for (int i = -30; i <= 30; i++)
+			DecimalMultipliers[i + 30] = Double.parseDouble("1e" + i);
+	}
+
 	public final int index;
 	public final String name;
 	public final int mode;
@@ -153,15 +232,34 @@ public final class IoTProperty {
 	// If -30 <= exponent <= 30, then the value must be multiplied by 10^exponent
 	// If exponent is one of the _IECMultipliers values, then the value must be multiplied by the corresponding value (such as 2^10, 2^20 and so on)
 	public final int exponent;
+	// Value by which the raw value must be multiplied, computed only once, based on exponent
+	public final double multiplier;
 
 	public Object userTag;
 
 	private final Buffer value;
+	// The codec for this property's data type (only used while holding the lock on value)
+	private final IoTPropertyCodec codec;
+
+	private Enums enums;
 
-	private SparseArray<Enum> enumsByValue;
-	private List<Enum> enumsByOrder;
+	// Decoded only once after each change (must be accessed while holding the lock on value)
+	private String valueString;
+
+	// [start, end) byte ranges changed by setArrayValue*() since the last commit, used to send
+	// only what has changed (only used with arrays, while holding the lock on value)
+	private int[] dirtyRanges; // Only allocated when first needed
+	private int dirtyRangeCount;
+	// Only used by the client thread, while a change of this property is waiting to be
+	// notified, in a batch of conflated changes (see IoTClient.setPropertyChangeConflation())
+	boolean conflatedChangePending;
 
 	private Observer observer;
+	private volatile IoTPublisher publisher;
+
+	// Whether the client wants to receive ServerMessagePropertyChange messages
+	// for this property (used to subscribe again after a new handshake)
+	private volatile boolean subscribed;
 
 	IoTInterface ioTInterface;
 
@@ -217,34 +315,27 @@ public final class IoTProperty {
 		this.unitNum = unitNum;
 		this.unitDen = unitDen;
 		this.exponent = exponent;
-		switch (dataType) {
-		case DataTypeS16:
-		case DataTypeU16:
-			elementSize = 2;
-			break;
-		case DataTypeS32:
-		case DataTypeU32:
-		case DataTypeFloat32:
-			elementSize = 4;
-			break;
-		case DataTypeS64:
-		case DataTypeU64:
-		case DataTypeFloat64:
-			elementSize = 8;
-			break;
-		case DataTypeRGBTriplet:
-			if (unitNum == UnitRGB)
-				elementSize = 3;
-			else
-				throw new IllegalArgumentException("unitNum != UnitRGB && dataType == DataTypeRGBTriplet");
-			break;
-		default:
-			elementSize = 1;
-			break;
-		}
+		multiplier = multiplierForExponent(exponent);
+		if (dataType == DataTypeRGBTriplet && unitNum != UnitRGB)
+			throw new IllegalArgumentException("unitNum != UnitRGB && dataType == DataTypeRGBTriplet");
+		codec = IoTPropertyCodec.forDataType(dataType);
+		elementSize = codec.elementSize;
 		value = new Buffer(elementSize * elementCount);
 	}
 
+	static double multiplierForExponent(int exponent) {
+		// exponent comes from the payload as an unsigned byte
+		exponent = (int)(byte)exponent;
+		if (exponent >= IECYobi && exponent <= IECKibi)
+			return Math.scalb(1.0, 10 * (0x80 - exponent)); // 2^80 does not fit in a long
+		return ((exponent >= -30 && exponent <= 30) ? DecimalMultipliers[exponent + 30] : 1.0);
+	}
+
+	// Must be called while holding the lock on value
+	private ByteBuffer view() {
+		return value.view();
+	}
+
 	@Override
 	public String toString() {
 		return name;
@@ -264,12 +355,12 @@ public final class IoTProperty {
 
 	@SecondaryThread
 	boolean isComplete_() {
-		return (unitNum != UnitEnum || enumsByValue != null);
+		return (unitNum != UnitEnum || enums != null);
 	}
 
 	@SecondaryThread
 	void describeEnum_() {
-		if (unitNum == UnitEnum && enumsByValue == null)
+		if (unitNum == UnitEnum && enums == null)
 			ioTInterface.device.client.describeEnum_(this);
 	}
 
@@ -287,19 +378,18 @@ public final class IoTProperty {
 			int enumCount = (payload[srcOffset++] & 0xFF);
 
 			if (enumCount == 0) {
-				enumsByValue = new SparseArray<>();
-				enumsByOrder = Collections.unmodifiableList(new ArrayList<Enum>());
+				setEnums_(new Enum[0]);
 				return;
 			}
 
-			final SparseArray<Enum> sparseArray = new SparseArray<>(enumCount);
-			final ArrayList<Enum> list = new ArrayList<>(enumCount);
+			final IoTMessage.NameCache nameCache = ioTInterface.device.client.nameCache;
+			final Enum[] enums = new Enum[enumCount];
 
 			for (int i = 0; i < enumCount; i++) {
 				final int enumNameLen = (payload[srcOffset++] & 0xFF);
 				if ((enumNameLen + srcOffset) > payloadLength)
 					return;
-				final String name = new String(payload, srcOffset, enumNameLen);
+				final String name = nameCache.decode_(payload, srcOffset, enumNameLen);
 				srcOffset += enumNameLen;
 
 				final int value;
@@ -321,13 +411,10 @@ public final class IoTProperty {
 					break;
 				}
 
-				final Enum e = new Enum(name, value);
-				sparseArray.put(value, e);
-				list.add(e);
+				enums[i] = new Enum(name, value);
 			}
 
-			enumsByValue = sparseArray;
-			enumsByOrder = Collections.unmodifiableList(list);
+			setEnums_(enums);
 		} catch (Throwable ex) {
 			ex.printStackTrace();
 		}
@@ -335,46 +422,111 @@ public final class IoTProperty {
 
 	// This method is only called before the device is published
 	@SecondaryThread
-	void handleDescribeEnum_(Enum[] enums) {
-		enumsByValue = new SparseArray<>(enums.length);
+	void handleDescribeEnum_(Enums enums) {
+		this.enums = enums;
+	}
 
-		final ArrayList<Enum> list = new ArrayList<>(enums.length);
-		for (Enum e : enums) {
-			list.add(e);
-			enumsByValue.put(e.value, e);
-		}
+	@SecondaryThread
+	private void setEnums_(Enum[] enums) {
+		this.enums = new Enums(enums);
+	}
 
-		enumsByOrder = Collections.unmodifiableList(list);
+	// Enums of the same property of another device, whose description is identical to this
+	// device's description (see IoTDeviceTemplate)
+	@SecondaryThread
+	void shareEnums_(IoTProperty property) {
+		enums = property.enums;
 	}
 
-	void handleProperty(byte[] payload, int payloadOffset, int payloadLength, int userArg) {
-		if (payloadLength > value.buffer.length)
-			payloadLength = value.buffer.length;
+	// Values received from the device are always stored by the client thread, in the order
+	// they arrive, before the observers are notified (the dirty ranges are kept, as they
+	// are only cleared once the device has accepted them, see commitSetArrayValue())
+	@SecondaryThread
+	void storeReceivedValue_(byte[] payload, int payloadOffset, int payloadLength) {
+		if (payloadLength > value.maxLength)
+			payloadLength = value.maxLength;
 
 		if (payloadLength == 0) {
 			if (unitNum == UnitUTF8Text) {
 				synchronized (value) {
-					value.buffer[0] = 0;
+					value.bytes()[0] = 0;
 					value.length = 1;
+					valueString = null;
 				}
 			} else {
 				synchronized (value) {
 					value.length = 0;
+					valueString = null;
 				}
 			}
 		} else {
 			synchronized (value) {
-				System.arraycopy(payload, payloadOffset, value.buffer, 0, payloadLength);
+				System.arraycopy(payload, payloadOffset, value.bytes(), 0, payloadLength);
 				value.length = payloadLength;
+				valueString = null;
 			}
 		}
+	}
+
+	@SecondaryThread
+	void resubscribe_() {
+		if (subscribed)
+			ioTInterface.device.client.subscribeProperty_(this, true);
+	}
+
+	@SecondaryThread
+	void handleSubscribe_(boolean subscribe, int responseCode) {
+		// If the device does not support subscriptions, there is no reason to keep
+		// trying (ResponseUnknownClient is handled during the next handshake)
+		if (subscribe && responseCode != IoTMessage.ResponseOK && responseCode != IoTMessage.ResponseUnknownClient)
+			subscribed = false;
+	}
+
+	// Merges a chunk of the value, received as a response to MessageGetPropertyRange, whose
+	// payload is interfaceIndex, propertyIndex, total value length, offset and the bytes
+	@SecondaryThread
+	void handlePropertyRange_(byte[] payload, int payloadLength) {
+		if (payloadLength < 6)
+			return;
+		final int totalLength = (payload[2] & 0xFF) | ((payload[3] & 0xFF) << 8);
+		final int offset = (payload[4] & 0xFF) | ((payload[5] & 0xFF) << 8);
+		final int maxLength = value.maxLength;
+		int length = payloadLength - 6;
+		if (offset >= maxLength)
+			length = 0;
+		else if ((offset + length) > maxLength)
+			length = maxLength - offset;
+		synchronized (value) {
+			if (length > 0)
+				System.arraycopy(payload, 6, value.bytes(), offset, length);
+			value.length = ((totalLength > maxLength) ? maxLength : totalLength);
+			valueString = null;
+		}
+	}
 
+	void notifyPropertyChange(int userArg) {
 		if (observer != null)
 			observer.onPropertyChange(ioTInterface, this, userArg);
+		if (publisher != null)
+			publisher.publish_(this);
+		final IoTPublisher devicePublisher = ioTInterface.device.existingPublisher();
+		if (devicePublisher != null)
+			devicePublisher.publish_(this);
+	}
+
+	// Unlike the observer, any number of subscribers can be notified about the changes of
+	// this property (see IoTPublisher)
+	public IoTPublisher publisher() {
+		synchronized (value) {
+			if (publisher == null)
+				publisher = new IoTPublisher(ioTInterface.device, this);
+			return publisher;
+		}
 	}
 
 	public List<Enum> getEnums() {
-		return enumsByOrder;
+		final Enums enums = this.enums;
+		return ((enums == null) ? null : enums.byOrder);
 	}
 
 	public boolean updateValue() {
@@ -385,192 +537,298 @@ public final class IoTProperty {
 		return (mode != ModeWriteOnly && ioTInterface.device.client.getProperty(this, userArg));
 	}
 
+	public IoTFuture updateValueAsync() {
+		final IoTFuture future = new IoTFuture(ioTInterface.device);
+		if (mode == ModeWriteOnly)
+			future.complete_(IoTMessage.ResponseInterfacePropertyWriteOnly);
+		else
+			ioTInterface.device.client.getProperty(this, 0, future);
+		return future;
+	}
+
+	private IoTFuture sendValueAsync(boolean stored) {
+		final IoTFuture future = new IoTFuture(ioTInterface.device);
+		if (!stored)
+			future.complete_((mode == ModeReadOnly) ? IoTMessage.ResponseInterfacePropertyReadOnly : IoTMessage.ResponseInvalidInterfacePropertyValue);
+		else
+			ioTInterface.device.client.setProperty(this, value, 0, future);
+		return future;
+	}
+
+	public IoTFuture setValueBooleanAsync(boolean value) {
+		return sendValueAsync(storeValueBoolean(value));
+	}
+
+	public IoTFuture setValueByteAsync(int value) {
+		return sendValueAsync(storeValueByte(value));
+	}
+
+	public IoTFuture setValueShortAsync(int value) {
+		return sendValueAsync(storeValueShort(value));
+	}
+
+	public IoTFuture setValueIntAsync(int value) {
+		return sendValueAsync(storeValueInt(value));
+	}
+
+	public IoTFuture setValueLongAsync(long value) {
+		return sendValueAsync(storeValueLong(value));
+	}
+
+	public IoTFuture setValueFloatAsync(float value) {
+		return sendValueAsync(storeValueFloat(value));
+	}
+
+	public IoTFuture setValueDoubleAsync(double value) {
+		return sendValueAsync(storeValueDouble(value));
+	}
+
+	public IoTFuture setValueEnumAsync(Enum value) {
+		return sendValueAsync(storeValueEnum(value));
+	}
+
+	public IoTFuture setValueRGBAAsync(int value) {
+		return sendValueAsync(storeValueRGBA(value));
+	}
+
+	public IoTFuture setValueBufferAsync(byte[] buffer, int offset, int length) {
+		return sendValueAsync(storeValueBuffer(buffer, offset, length));
+	}
+
+	public IoTFuture setValueStringAsync(String string) {
+		return sendValueAsync(storeValueString(string));
+	}
+
+	public boolean isSubscribed() {
+		return subscribed;
+	}
+
+	public boolean subscribe() {
+		return subscribe(0);
+	}
+
+	// Once subscribed, the device sends the new values of this property as soon as they change,
+	// and it is no longer necessary to poll the device by calling updateValue()
+	public boolean subscribe(int userArg) {
+		if (mode == ModeWriteOnly)
+			return false;
+		// subscribed must be set before sending, because a failure response could arrive
+		// before subscribeProperty() returns, but it is only kept if the message was sent
+		final boolean wasSubscribed = subscribed;
+		subscribed = true;
+		if (!ioTInterface.device.client.subscribeProperty(this, true, userArg)) {
+			subscribed = wasSubscribed;
+			return false;
+		}
+		return true;
+	}
+
+	public boolean unsubscribe() {
+		return unsubscribe(0);
+	}
+
+	public boolean unsubscribe(int userArg) {
+		if (!subscribed)
+			return false;
+		subscribed = false;
+		return ioTInterface.device.client.subscribeProperty(this, false, userArg);
+	}
+
 	// Access to the value must be synchronized because it is read from a
 	// secondary thread in order to build a message
 
 	public boolean getValueBoolean() {
 		synchronized (this.value) {
-			return (value.buffer[0] != 0);
+			return (value.bytes()[0] != 0);
 		}
 	}
 
 	public int getValueByte() {
-		synchronized (this.value) {
-			switch (dataType) {
-			case DataTypeS8:
-				return value.buffer[0];
-			default:
-				return (value.buffer[0] & 0xFF);
-			}
+		synchronized (value) {
+			return codec.getByte(view(), 0);
 		}
 	}
 
 	public int getValueShort() {
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			switch (dataType) {
-			case DataTypeS16:
-				return ((buffer[0] & 0xFF) | (buffer[1] << 8));
-			default:
-				return ((buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8));
-			}
+			return codec.getShort(view(), 0);
 		}
 	}
 
+	// The fixed width getters below do not go through the codec on purpose (see IoTPropertyCodec)
 	public int getValueInt() {
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			return (buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8) | ((buffer[2] & 0xFF) << 16) | (buffer[3] << 24);
+			return view().getInt(0);
 		}
 	}
 
 	public long getValueLong() {
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			return ((long)((buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8) | ((buffer[2] & 0xFF) << 16) | (buffer[3] << 24)) & 0xFFFFFFFFL) |
-				((long)((buffer[4] & 0xFF) | ((buffer[5] & 0xFF) << 8) | ((buffer[6] & 0xFF) << 16) | (buffer[7] << 24)) << 32);
+			return view().getLong(0);
 		}
 	}
 
 	public float getValueFloat() {
-		return Float.intBitsToFloat(getValueInt());
+		synchronized (value) {
+			return view().getFloat(0);
+		}
 	}
 
 	public double getValueDouble() {
-		return Double.longBitsToDouble(getValueLong());
+		synchronized (value) {
+			return view().getDouble(0);
+		}
+	}
+
+	// Returns the value already multiplied by multiplier (10^exponent or the IEC multiplier)
+	public double getScaledDouble() {
+		synchronized (value) {
+			return codec.getElementDouble(view(), 0) * multiplier;
+		}
+	}
+
+	public double getConvertedDouble(IoTUnitConverter converter) {
+		return converter.convert(getScaledDouble());
 	}
 
 	public Enum getValueEnum() {
-		if (enumsByValue == null)
+		final Enums enums = this.enums;
+		if (enums == null)
 			return null;
-		final byte[] buffer = this.value.buffer;
 		final int value;
 		synchronized (this.value) {
-			switch (dataType) {
-			case DataTypeS8:
-				value = buffer[0];
-				break;
-			case DataTypeU8:
-				value = (buffer[0] & 0xFF);
-				break;
-			case DataTypeS16:
-				value = (buffer[0] & 0xFF) | (buffer[1] << 8);
-				break;
-			case DataTypeU16:
-				value = (buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8);
-				break;
-			default:
-				value = (buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8) | ((buffer[2] & 0xFF) << 16) | (buffer[3] << 24);
-				break;
-			}
+			value = codec.getElementInt(view(), 0);
 		}
-		return enumsByValue.get(value);
+		return enums.get(value);
 	}
 
 	public int getValueRGBA() {
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			// Make sure alpha is 255 when dataType == DataTypeRGBTriplet
-			return (buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8) | ((buffer[2] & 0xFF) << 16) |
-				((dataType == DataTypeRGBTriplet) ? 0xFF000000 : (buffer[3] << 24));
+			// The codec makes sure alpha is 255 when dataType == DataTypeRGBTriplet
+			return codec.getElementInt(view(), 0);
 		}
 	}
 
 	public boolean getArrayValueBoolean(int elementIndex) {
 		synchronized (this.value) {
-			return (value.buffer[elementIndex] != 0);
+			return (value.bytes()[elementIndex] != 0);
 		}
 	}
 
 	public int getArrayValueByte(int elementIndex) {
-		synchronized (this.value) {
-			switch (dataType) {
-			case DataTypeS8:
-				return value.buffer[elementIndex];
-			default:
-				return (value.buffer[elementIndex] & 0xFF);
-			}
+		synchronized (value) {
+			return codec.getByte(view(), elementIndex);
 		}
 	}
 
 	public int getArrayValueShort(int elementIndex) {
-		elementIndex <<= 1;
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			switch (dataType) {
-			case DataTypeS16:
-				return ((buffer[elementIndex++] & 0xFF) | (buffer[elementIndex] << 8));
-			default:
-				return ((buffer[elementIndex++] & 0xFF) | ((buffer[elementIndex] & 0xFF) << 8));
-			}
+			return codec.getShort(view(), elementIndex << 1);
 		}
 	}
 
 	public int getArrayValueInt(int elementIndex) {
-		elementIndex <<= 2;
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			return (buffer[elementIndex++] & 0xFF) | ((buffer[elementIndex++] & 0xFF) << 8) | ((buffer[elementIndex++] & 0xFF) << 16) | (buffer[elementIndex] << 24);
+			return view().getInt(elementIndex << 2);
 		}
 	}
 
 	public long getArrayValueLong(int elementIndex) {
-		elementIndex <<= 3;
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			return ((long)((buffer[elementIndex++] & 0xFF) | ((buffer[elementIndex++] & 0xFF) << 8) | ((buffer[elementIndex++] & 0xFF) << 16) | (buffer[elementIndex++] << 24)) & 0xFFFFFFFFL) |
-				((long)((buffer[elementIndex++] & 0xFF) | ((buffer[elementIndex++] & 0xFF) << 8) | ((buffer[elementIndex++] & 0xFF) << 16) | (buffer[elementIndex] << 24)) << 32);
+			return view().getLong(elementIndex << 3);
 		}
 	}
 
 	public float getArrayValueFloat(int elementIndex) {
-		return Float.intBitsToFloat(getArrayValueInt(elementIndex));
+		synchronized (value) {
+			return view().getFloat(elementIndex << 2);
+		}
 	}
 
 	public double getArrayValueDouble(int elementIndex) {
-		return Double.longBitsToDouble(getArrayValueLong(elementIndex));
+		synchronized (value) {
+			return view().getDouble(elementIndex << 3);
+		}
+	}
+
+	public double getArrayScaledDouble(int elementIndex) {
+		synchronized (value) {
+			return codec.getElementDouble(view(), elementIndex * elementSize) * multiplier;
+		}
+	}
+
+	public double getArrayConvertedDouble(int elementIndex, IoTUnitConverter converter) {
+		return converter.convert(getArrayScaledDouble(elementIndex));
+	}
+
+	public int getArrayScaledDoubles(double[] dst) {
+		return getArrayScaledDoubles(0, dst, 0, dst.length, null);
+	}
+
+	public int getArrayScaledDoubles(int firstElementIndex, double[] dst, int dstOffset, int count) {
+		return getArrayScaledDoubles(firstElementIndex, dst, dstOffset, count, null);
+	}
+
+	// Fills dst with up to count elements, all of them read while holding the lock only once,
+	// and returns how many elements were actually copied (converter can be null)
+	public int getArrayScaledDoubles(int firstElementIndex, double[] dst, int dstOffset, int count, IoTUnitConverter converter) {
+		final double factor, offset;
+		if (converter == null) {
+			factor = multiplier;
+			offset = 0.0;
+		} else {
+			factor = multiplier * converter.factor;
+			offset = converter.offset;
+		}
+		synchronized (value) {
+			final int availableCount = (value.length / elementSize) - firstElementIndex;
+			if (count > availableCount)
+				count = availableCount;
+			for (int i = 0, srcOffset = firstElementIndex * elementSize; i < count; i++, srcOffset += elementSize)
+				dst[dstOffset + i] = codec.getElementDouble(view(), srcOffset) * factor + offset;
+		}
+		return ((count < 0) ? 0 : count);
+	}
+
+	public int getArrayScaledFloats(int firstElementIndex, float[] dst, int dstOffset, int count, IoTUnitConverter converter) {
+		final double factor, offset;
+		if (converter == null) {
+			factor = multiplier;
+			offset = 0.0;
+		} else {
+			factor = multiplier * converter.factor;
+			offset = converter.offset;
+		}
+		synchronized (value) {
+			final int availableCount = (value.length / elementSize) - firstElementIndex;
+			if (count > availableCount)
+				count = availableCount;
+			for (int i = 0, srcOffset = firstElementIndex * elementSize; i < count; i++, srcOffset += elementSize)
+				dst[dstOffset + i] = (float)(codec.getElementDouble(view(), srcOffset) * factor + offset);
+		}
+		return ((count < 0) ? 0 : count);
+	}
+
+	// Returns null if this property's unit cannot be converted into the given one
+	public IoTUnitConverter converterTo(int unitNum, int unitDen, int exponent) {
+		return IoTUnitConverter.get(this.unitNum, this.unitDen, unitNum, unitDen, exponent);
 	}
 
 	public Enum getArrayValueEnum(int elementIndex) {
-		if (enumsByValue == null)
+		final Enums enums = this.enums;
+		if (enums == null)
 			return null;
-		final byte[] buffer = this.value.buffer;
 		final int value;
 		synchronized (this.value) {
-			switch (dataType) {
-			case DataTypeS8:
-				value = buffer[elementIndex];
-				break;
-			case DataTypeU8:
-				value = (buffer[elementIndex] & 0xFF);
-				break;
-			case DataTypeS16:
-				elementIndex <<= 1;
-				value = (buffer[elementIndex++] & 0xFF) | (buffer[elementIndex] << 8);
-				break;
-			case DataTypeU16:
-				elementIndex <<= 1;
-				value = (buffer[elementIndex++] & 0xFF) | ((buffer[elementIndex] & 0xFF) << 8);
-				break;
-			default:
-				elementIndex <<= 2;
-				value = (buffer[elementIndex++] & 0xFF) | ((buffer[elementIndex++] & 0xFF) << 8) | ((buffer[elementIndex++] & 0xFF) << 16) | (buffer[elementIndex] << 24);
-				break;
-			}
+			value = codec.getElementInt(view(), elementIndex * elementSize);
 		}
-		return enumsByValue.get(value);
+		return enums.get(value);
 	}
 
 	public int getArrayValueRGBA(int elementIndex) {
-		if (dataType == DataTypeRGBTriplet)
-			elementIndex *= 3;
-		else
-			elementIndex <<= 2;
-		final byte[] buffer = value.buffer;
 		synchronized (value) {
-			// Make sure alpha is 255 when dataType == DataTypeRGBTriplet
-			return (buffer[elementIndex++] & 0xFF) | ((buffer[elementIndex++] & 0xFF) << 8) | ((buffer[elementIndex++] & 0xFF) << 16) |
-				((dataType == DataTypeRGBTriplet) ? 0xFF000000 : (buffer[elementIndex] << 24));
+			// The codec makes sure alpha is 255 when dataType == DataTypeRGBTriplet
+			return codec.getElementInt(view(), elementIndex * elementSize);
 		}
 	}
 
@@ -582,16 +840,16 @@ public final class IoTProperty {
 		synchronized (value) {
 			if (length > value.length)
 				length = value.length;
-			System.arraycopy(value.buffer, 0, buffer, offset, length);
+			System.arraycopy(value.bytes(), 0, buffer, offset, length);
 			return length;
 		}
 	}
 
 	public String getValueString() {
 		synchronized (value) {
-			if (value.length <= 1)
-				return "";
-			return new String(value.buffer, 0, value.length - 1);
+			if (valueString == null)
+				valueString = ((value.length <= 1) ? "" : new String(value.bytes(), 0, value.length - 1, IoTMessage.UTF8));
+			return valueString;
 		}
 	}
 
@@ -632,115 +890,136 @@ public final class IoTProperty {
 	}
 
 	public boolean setValueBoolean(boolean value, int userArg) {
+		return (storeValueBoolean(value) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueBoolean(boolean value) {
 		if (mode == ModeReadOnly)
 			return false;
 		synchronized (this.value) {
-			this.value.buffer[0] = (byte)(value ? 1 : 0);
+			this.value.bytes()[0] = (byte)(value ? 1 : 0);
 			this.value.length = 1;
+			valueString = null;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 
 	public boolean setValueByte(int value, int userArg) {
+		return (storeValueByte(value) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueByte(int value) {
 		if (mode == ModeReadOnly)
 			return false;
 		synchronized (this.value) {
-			this.value.buffer[0] = (byte)value;
+			this.value.bytes()[0] = (byte)value;
 			this.value.length = 1;
+			valueString = null;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 
 	public boolean setValueShort(int value, int userArg) {
+		return (storeValueShort(value) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueShort(int value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
-			buffer[0] = (byte)value;
-			buffer[1] = (byte)(value >>> 8);
+			view().putShort(0, (short)value);
 			this.value.length = 2;
+			valueString = null;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 
 	public boolean setValueInt(int value, int userArg) {
+		return (storeValueInt(value) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueInt(int value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
-			buffer[0] = (byte)value;
-			buffer[1] = (byte)(value >>> 8);
-			buffer[2] = (byte)(value >>> 16);
-			buffer[3] = (byte)(value >>> 24);
+			view().putInt(0, value);
 			this.value.length = 4;
+			valueString = null;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 
 	public boolean setValueLong(long value, int userArg) {
+		return (storeValueLong(value) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueLong(long value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
-			buffer[0] = (byte)value;
-			buffer[1] = (byte)(value >>> 8);
-			buffer[2] = (byte)(value >>> 16);
-			buffer[3] = (byte)(value >>> 24);
-			buffer[4] = (byte)(value >>> 32);
-			buffer[5] = (byte)(value >>> 40);
-			buffer[6] = (byte)(value >>> 48);
-			buffer[7] = (byte)(value >>> 56);
+			view().putLong(0, value);
 			this.value.length = 8;
+			valueString = null;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 
 	public boolean setValueFloat(float value, int userArg) {
 		return setValueInt(Float.floatToRawIntBits(value), userArg);
 	}
 
+	boolean storeValueFloat(float value) {
+		return storeValueInt(Float.floatToRawIntBits(value));
+	}
+
 	public boolean setValueDouble(double value, int userArg) {
 		return setValueLong(Double.doubleToRawLongBits(value), userArg);
 	}
 
+	boolean storeValueDouble(double value) {
+		return storeValueLong(Double.doubleToRawLongBits(value));
+	}
+
 	public boolean setValueEnum(Enum value, int userArg) {
-		if (enumsByValue == null || mode == ModeReadOnly || value == null)
+		return (storeValueEnum(value) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueEnum(Enum value) {
+		if (enums == null || mode == ModeReadOnly || value == null)
 			return false;
-		switch (elementSize) {
-		case 2:
-			return setValueShort(value.value, userArg);
-		case 4:
-			return setValueInt(value.value, userArg);
-		default:
-			return setValueByte(value.value, userArg);
+		synchronized (this.value) {
+			codec.putElementInt(view(), 0, value.value);
+			this.value.length = elementSize;
+			valueString = null;
 		}
+		return true;
 	}
 
 	public boolean setValueRGBA(int value, int userArg) {
+		return (storeValueRGBA(value) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueRGBA(int value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
-			buffer[0] = (byte)value;
-			buffer[1] = (byte)(value >>> 8);
-			buffer[2] = (byte)(value >>> 16);
-			if (dataType == DataTypeRGBTriplet) {
-				this.value.length = 3;
-			} else {
-				buffer[3] = (byte)(value >>> 24);
-				this.value.length = 4;
-			}
+			// The codec only writes 3 bytes when dataType == DataTypeRGBTriplet
+			codec.putElementInt(view(), 0, value);
+			this.value.length = elementSize;
+			valueString = null;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 
 	public boolean setArrayValueBoolean(int elementIndex, boolean value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
+			final byte[] buffer = this.value.bytes();
 			buffer[elementIndex] = (byte)(value ? 1 : 0);
 			this.value.length = buffer.length;
+			valueString = null;
+			markDirty(elementIndex, 1);
 		}
 		return true;
 	}
@@ -748,10 +1027,12 @@ public final class IoTProperty {
 	public boolean setArrayValueByte(int elementIndex, int value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
+			final byte[] buffer = this.value.bytes();
 			buffer[elementIndex] = (byte)value;
 			this.value.length = buffer.length;
+			valueString = null;
+			markDirty(elementIndex, 1);
 		}
 		return true;
 	}
@@ -759,12 +1040,11 @@ public final class IoTProperty {
 	public boolean setArrayValueShort(int elementIndex, int value) {
 		if (mode == ModeReadOnly)
 			return false;
-		elementIndex <<= 1;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
-			buffer[elementIndex++] = (byte)value;
-			buffer[elementIndex] = (byte)(value >>> 8);
-			this.value.length = buffer.length;
+			view().putShort(elementIndex << 1, (short)value);
+			this.value.length = this.value.maxLength;
+			valueString = null;
+			markDirty(elementIndex << 1, 2);
 		}
 		return true;
 	}
@@ -772,14 +1052,11 @@ public final class IoTProperty {
 	public boolean setArrayValueInt(int elementIndex, int value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
-		elementIndex <<= 2;
 		synchronized (this.value) {
-			buffer[elementIndex++] = (byte)value;
-			buffer[elementIndex++] = (byte)(value >>> 8);
-			buffer[elementIndex++] = (byte)(value >>> 16);
-			buffer[elementIndex] = (byte)(value >>> 24);
-			this.value.length = buffer.length;
+			view().putInt(elementIndex << 2, value);
+			this.value.length = this.value.maxLength;
+			valueString = null;
+			markDirty(elementIndex << 2, 4);
 		}
 		return true;
 	}
@@ -787,18 +1064,11 @@ public final class IoTProperty {
 	public boolean setArrayValueLong(int elementIndex, long value) {
 		if (mode == ModeReadOnly)
 			return false;
-		final byte[] buffer = this.value.buffer;
-		elementIndex <<= 3;
 		synchronized (this.value) {
-			buffer[elementIndex++] = (byte)value;
-			buffer[elementIndex++] = (byte)(value >>> 8);
-			buffer[elementIndex++] = (byte)(value >>> 16);
-			buffer[elementIndex++] = (byte)(value >>> 24);
-			buffer[elementIndex++] = (byte)(value >>> 32);
-			buffer[elementIndex++] = (byte)(value >>> 40);
-			buffer[elementIndex++] = (byte)(value >>> 48);
-			buffer[elementIndex] = (byte)(value >>> 56);
-			this.value.length = buffer.length;
+			view().putLong(elementIndex << 3, value);
+			this.value.length = this.value.maxLength;
+			valueString = null;
+			markDirty(elementIndex << 3, 8);
 		}
 		return true;
 	}
@@ -812,43 +1082,163 @@ public final class IoTProperty {
 	}
 
 	public boolean setArrayValueEnum(int elementIndex, Enum value) {
-		if (value == null)
+		if (mode == ModeReadOnly || value == null)
 			return false;
-		switch (elementSize) {
-		case 2:
-			return setArrayValueShort(elementIndex, value.value);
-		case 4:
-			return setArrayValueInt(elementIndex, value.value);
-		default:
-			return setArrayValueByte(elementIndex, value.value);
+		synchronized (this.value) {
+			codec.putElementInt(view(), elementIndex * elementSize, value.value);
+			this.value.length = this.value.maxLength;
+			valueString = null;
+			markDirty(elementIndex * elementSize, elementSize);
 		}
+		return true;
 	}
 
 	public boolean setArrayValueRGBA(int elementIndex, int value) {
 		if (mode == ModeReadOnly)
 			return false;
-		if (dataType == DataTypeRGBTriplet)
-			elementIndex *= 3;
-		else
-			elementIndex <<= 2;
-		final byte[] buffer = this.value.buffer;
 		synchronized (this.value) {
-			buffer[elementIndex++] = (byte)value;
-			buffer[elementIndex++] = (byte)(value >>> 8);
-			buffer[elementIndex++] = (byte)(value >>> 16);
-			if (dataType != DataTypeRGBTriplet)
-				buffer[elementIndex] = (byte)(value >>> 24);
-			this.value.length = buffer.length;
+			// The codec only writes 3 bytes when dataType == DataTypeRGBTriplet
+			codec.putElementInt(view(), elementIndex * elementSize, value);
+			this.value.length = this.value.maxLength;
+			valueString = null;
+			markDirty(elementIndex * elementSize, elementSize);
 		}
 		return true;
 	}
 
+	// Must be called while holding the lock on value (texts are not tracked: their length
+	// changes with almost every value, and a range cannot change the length of the value
+	// stored by the device, so they are always sent entirely)
+	private void markDirty(int offset, int length) {
+		int[] ranges = dirtyRanges;
+		if (ranges == null) {
+			if (elementCount <= 1 || unitNum == UnitUTF8Text)
+				return;
+			dirtyRanges = ranges = new int[MaxDirtyRanges << 1];
+		}
+		int start = offset, end = offset + length, count = dirtyRangeCount;
+		// Absorb all ranges overlapping/touching [start, end)
+		for (int i = 0; i < count; ) {
+			final int rangeStart = ranges[i << 1], rangeEnd = ranges[(i << 1) + 1];
+			if (rangeEnd >= start && rangeStart <= end) {
+				if (start > rangeStart)
+					start = rangeStart;
+				if (end < rangeEnd)
+					end = rangeEnd;
+				count--;
+				System.arraycopy(ranges, (i + 1) << 1, ranges, i << 1, (count - i) << 1);
+			} else {
+				i++;
+			}
+		}
+		if (count == MaxDirtyRanges) {
+			// Merge [start, end) with the closest range (there is no range between them)
+			int closest = 0, closestGap = Integer.MAX_VALUE;
+			for (int i = 0; i < count; i++) {
+				final int gap = ((ranges[i << 1] >= end) ? (ranges[i << 1] - end) : (start - ranges[(i << 1) + 1]));
+				if (closestGap > gap) {
+					closestGap = gap;
+					closest = i;
+				}
+			}
+			if (start > ranges[closest << 1])
+				start = ranges[closest << 1];
+			if (end < ranges[(closest << 1) + 1])
+				end = ranges[(closest << 1) + 1];
+			count--;
+			System.arraycopy(ranges, (closest + 1) << 1, ranges, closest << 1, (count - closest) << 1);
+		}
+		ranges[count << 1] = start;
+		ranges[(count << 1) + 1] = end;
+		dirtyRangeCount = count + 1;
+	}
+
+	// Returns a copy of the dirty ranges, or null if there are none (must be called while
+	// holding the lock on value)
+	private int[] takeDirtyRanges() {
+		final int count = dirtyRangeCount;
+		if (count == 0)
+			return null;
+		dirtyRangeCount = 0;
+		return Arrays.copyOf(dirtyRanges, count << 1);
+	}
+
+	// Returns false when it is better to send the entire value (must be called while
+	// holding the lock on value)
+	private boolean shouldSendDirtyRanges(int[] ranges) {
+		if (value.length != value.maxLength ||
+			!ioTInterface.device.isSetPropertyRangeSupported())
+			return false;
+		// Each range costs 4 extra bytes (offset and length), and the message itself, 1 extra byte
+		int rangeLength = 1;
+		for (int i = ranges.length - 2; i >= 0; i -= 2)
+			rangeLength += 4 + ranges[i + 1] - ranges[i];
+		return (rangeLength < value.length);
+	}
+
+	// Marks the ranges taken by a commit that could not be sent, or that has failed, as dirty
+	// again, so they are sent by the next commit
+	@MixedThreads
+	private void restoreDirtyRanges(int[] ranges) {
+		synchronized (value) {
+			for (int i = ranges.length - 2; i >= 0; i -= 2)
+				markDirty(ranges[i], ranges[i + 1] - ranges[i]);
+		}
+	}
+
+	// Used by IoTSentMessage to build messages containing more than one property
+	Buffer valueBuffer() {
+		return value;
+	}
+
+	// Used by IoTScene, so the members are not affected by later changes to the value
+	Buffer copyValueBuffer() {
+		synchronized (value) {
+			final Buffer copy = new Buffer(value.maxLength);
+			if (value.length > 0)
+				System.arraycopy(value.bytes(), 0, copy.bytes(), 0, value.length);
+			copy.length = value.length;
+			return copy;
+		}
+	}
+
 	public boolean commitSetArrayValue() {
-		return ioTInterface.device.client.setProperty(this, this.value, 0);
+		return commitSetArrayValue(0);
 	}
 
+	// Sends only the elements changed by setArrayValue*() since the last commit, if possible
 	public boolean commitSetArrayValue(int userArg) {
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return commitSetArrayValue(userArg, null);
+	}
+
+	public IoTFuture commitSetArrayValueAsync() {
+		final IoTFuture future = new IoTFuture(ioTInterface.device);
+		commitSetArrayValue(0, future);
+		return future;
+	}
+
+	private boolean commitSetArrayValue(int userArg, IoTFuture future) {
+		final int[] ranges;
+		final boolean sendRanges;
+		synchronized (value) {
+			ranges = takeDirtyRanges();
+			sendRanges = (ranges != null && shouldSendDirtyRanges(ranges));
+		}
+		if (ranges != null) {
+			// The ranges are only forgotten after the device has accepted them
+			if (future == null)
+				future = new IoTFuture(ioTInterface.device);
+			future.addListener(new IoTFuture.Listener() {
+				@Override
+				public void onComplete(IoTFuture future) {
+					if (future.result() != IoTMessage.ResponseOK)
+						restoreDirtyRanges(ranges);
+				}
+			});
+		}
+		return (sendRanges ?
+			ioTInterface.device.client.setPropertyRanges(this, this.value, ranges, userArg, future) :
+			ioTInterface.device.client.setProperty(this, this.value, userArg, future));
 	}
 
 	public boolean setValueBuffer(byte[] buffer) {
@@ -864,13 +1254,18 @@ public final class IoTProperty {
 	}
 
 	public boolean setValueBuffer(byte[] buffer, int offset, int length, int userArg) {
+		return (storeValueBuffer(buffer, offset, length) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueBuffer(byte[] buffer, int offset, int length) {
 		if (mode == ModeReadOnly)
 			return false;
 		synchronized (this.value) {
-			System.arraycopy(buffer, offset, this.value.buffer, 0, length);
+			System.arraycopy(buffer, offset, this.value.bytes(), 0, length);
 			this.value.length = length;
+			valueString = null;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 
 	public boolean setValueString(String string) {
@@ -878,21 +1273,27 @@ public final class IoTProperty {
 	}
 
 	public boolean setValueString(String string, int userArg) {
+		return (storeValueString(string) && ioTInterface.device.client.setProperty(this, this.value, userArg));
+	}
+
+	boolean storeValueString(String string) {
 		if (mode == ModeReadOnly)
 			return false;
 		if (string == null || string.length() == 0) {
 			synchronized (this.value) {
-				this.value.buffer[0] = 0;
+				this.value.bytes()[0] = 0;
 				this.value.length = 1;
+				valueString = "";
 			}
-			return ioTInterface.device.client.setProperty(this, this.value, userArg);
+			return true;
 		}
-		final byte[] buffer = string.getBytes();
+		final byte[] buffer = string.getBytes(IoTMessage.UTF8);
 		synchronized (this.value) {
-			System.arraycopy(buffer, 0, this.value.buffer, 0, buffer.length);
-			this.value.buffer[buffer.length] = 0;
+			System.arraycopy(buffer, 0, this.value.bytes(), 0, buffer.length);
+			this.value.bytes()[buffer.length] = 0;
 			this.value.length = buffer.length + 1;
+			valueString = string;
 		}
-		return ioTInterface.device.client.setProperty(this, this.value, userArg);
+		return true;
 	}
 }
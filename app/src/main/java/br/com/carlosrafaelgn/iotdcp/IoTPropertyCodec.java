@@ -0,0 +1,177 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.nio.ByteBuffer;
+
+// One codec instance is chosen for each property, according to its data type, when the
+// property is created, so the getters/setters do not need to check dataType on every call
+// (all buffers are expected to be little endian ByteBuffer views of IoTProperty.Buffer).
+// The codec is only used where the result depends on dataType: byte/short widening,
+// getScaledDouble(), enums, RGB and the element accessors. getValueInt/Long/Float/Double
+// read a fixed width value straight from the buffer, regardless of dataType, so they have
+// neither a branch nor a virtual call to remove. Bear in mind that the call sites inside
+// IoTProperty are shared by all properties: they only stay monomorphic (and inlined) while
+// the application uses properties of a single data type, otherwise the JIT/ART falls back
+// to a polymorphic inline cache or a virtual call, which is still cheaper than the former
+// switch on dataType.
+abstract class IoTPropertyCodec {
+	private static final class S8 extends IoTPropertyCodec {
+		S8() { super(1); }
+		@Override int getByte(ByteBuffer buffer, int offset) { return buffer.get(offset); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return buffer.get(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return buffer.get(offset); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.put(offset, (byte)value); }
+	}
+
+	private static final class U8 extends IoTPropertyCodec {
+		U8() { super(1); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return (buffer.get(offset) & 0xFF); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return (buffer.get(offset) & 0xFF); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.put(offset, (byte)value); }
+	}
+
+	private static final class S16 extends IoTPropertyCodec {
+		S16() { super(2); }
+		@Override int getShort(ByteBuffer buffer, int offset) { return buffer.getShort(offset); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return buffer.getShort(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return buffer.getShort(offset); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putShort(offset, (short)value); }
+	}
+
+	private static final class U16 extends IoTPropertyCodec {
+		U16() { super(2); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return (buffer.getShort(offset) & 0xFFFF); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return (buffer.getShort(offset) & 0xFFFF); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putShort(offset, (short)value); }
+	}
+
+	private static final class S32 extends IoTPropertyCodec {
+		S32() { super(4); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return buffer.getInt(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return buffer.getInt(offset); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putInt(offset, value); }
+	}
+
+	private static final class U32 extends IoTPropertyCodec {
+		U32() { super(4); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return buffer.getInt(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return (buffer.getInt(offset) & 0xFFFFFFFFL); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putInt(offset, value); }
+	}
+
+	private static final class S64 extends IoTPropertyCodec {
+		S64() { super(8); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return (int)buffer.getLong(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return buffer.getLong(offset); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putLong(offset, value); }
+	}
+
+	private static final class U64 extends IoTPropertyCodec {
+		U64() { super(8); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return (int)buffer.getLong(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) {
+			final long value = buffer.getLong(offset);
+			return ((value >= 0) ? (double)value : ((double)(value >>> 1) * 2.0 + (double)(value & 1)));
+		}
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putLong(offset, value & 0xFFFFFFFFL); }
+	}
+
+	private static final class Float32 extends IoTPropertyCodec {
+		Float32() { super(4); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return buffer.getInt(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return buffer.getFloat(offset); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putInt(offset, value); }
+	}
+
+	private static final class Float64 extends IoTPropertyCodec {
+		Float64() { super(8); }
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return (int)buffer.getLong(offset); }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return buffer.getDouble(offset); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) { buffer.putLong(offset, value); }
+	}
+
+	private static final class RGBTriplet extends IoTPropertyCodec {
+		RGBTriplet() { super(3); }
+		// Make sure alpha is 255
+		@Override int getElementInt(ByteBuffer buffer, int offset) { return (buffer.getShort(offset) & 0xFFFF) | ((buffer.get(offset + 2) & 0xFF) << 16) | 0xFF000000; }
+		@Override double getElementDouble(ByteBuffer buffer, int offset) { return (getElementInt(buffer, offset) & 0x00FFFFFF); }
+		@Override void putElementInt(ByteBuffer buffer, int offset, int value) {
+			buffer.putShort(offset, (short)value);
+			buffer.put(offset + 2, (byte)(value >>> 16));
+		}
+	}
+
+	private static final IoTPropertyCodec[] codecs = {
+		new S8(),
+		new S16(),
+		new S32(),
+		new S64(),
+		new U8(),
+		new U16(),
+		new U32(),
+		new U64(),
+		new Float32(),
+		new Float64(),
+		new RGBTriplet()
+	};
+
+	static IoTPropertyCodec forDataType(int dataType) {
+		// Unknown data types are treated as DataTypeU8, just like the element size
+		return ((dataType >= 0 && dataType < codecs.length) ? codecs[dataType] : codecs[IoTProperty.DataTypeU8]);
+	}
+
+	final int elementSize;
+
+	private IoTPropertyCodec(int elementSize) {
+		this.elementSize = elementSize;
+	}
+
+	// Fixed-width accessors (only S8 and S16 need sign extension here, because getValueByte()
+	// and getValueShort() have always returned unsigned values for the other data types)
+
+	int getByte(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset) & 0xFF);
+	}
+
+	int getShort(ByteBuffer buffer, int offset) {
+		return (buffer.getShort(offset) & 0xFFFF);
+	}
+
+	// Element accessors (the element is interpreted according to the data type)
+
+	// Returns the element sign/zero extended (or truncated) to an int
+	abstract int getElementInt(ByteBuffer buffer, int offset);
+
+	// Returns the element's numeric value, not yet multiplied by the property's multiplier
+	abstract double getElementDouble(ByteBuffer buffer, int offset);
+
+	abstract void putElementInt(ByteBuffer buffer, int offset, int value);
+}
@@ -0,0 +1,96 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.util.Arrays;
+
+// Collects the new values of several properties of the same device, and sends all of them
+// with a single MessageSetProperty message (the device receives all values at once, and
+// onSetProperty() is called only once, with the response code for all of them)
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTPropertyTransaction extends IoTPropertyValues<IoTPropertyTransaction> {
+	public final IoTDevice device;
+
+	private IoTProperty[] properties;
+	private int propertyCount;
+
+	IoTPropertyTransaction(IoTDevice device) {
+		this.device = device;
+		properties = new IoTProperty[8];
+	}
+
+	@Override
+	IoTPropertyTransaction addStored(IoTProperty property) {
+		for (int i = propertyCount - 1; i >= 0; i--) {
+			// The value has already been updated, so there is nothing else to be done
+			if (properties[i] == property)
+				return this;
+		}
+		if (propertyCount >= properties.length)
+			properties = Arrays.copyOf(properties, propertyCount << 1);
+		properties[propertyCount++] = property;
+		return this;
+	}
+
+	@Override
+	IoTProperty check(IoTProperty property) {
+		if (property.ioTInterface.device != device)
+			throw new IllegalArgumentException("property.ioTInterface.device != device");
+		return property;
+	}
+
+	public int propertyCount() {
+		return propertyCount;
+	}
+
+	public void clear() {
+		Arrays.fill(properties, 0, propertyCount, null);
+		propertyCount = 0;
+	}
+
+	public boolean commit() {
+		return commit(0);
+	}
+
+	// Returns false if there is nothing to be sent, or if all the values together would not
+	// fit in a single message (the transaction is cleared only if the message is sent)
+	public boolean commit(int userArg) {
+		if (propertyCount == 0)
+			return false;
+		int payloadLength = 0;
+		for (int i = propertyCount - 1; i >= 0; i--)
+			payloadLength += 4 + (properties[i].elementSize * properties[i].elementCount);
+		if (payloadLength > IoTMessage.MaxPayloadLength ||
+			!device.client.setProperties(device, Arrays.copyOf(properties, propertyCount), userArg))
+			return false;
+		clear();
+		return true;
+	}
+}
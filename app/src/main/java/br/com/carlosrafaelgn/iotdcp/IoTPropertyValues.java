@@ -0,0 +1,98 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+// Setters shared by IoTScene and IoTPropertyTransaction: each one stores the new value in
+// the property, and then adds the property to the collection
+@SuppressWarnings({"unused", "WeakerAccess"})
+abstract class IoTPropertyValues<T> {
+	// Called only after the new value has been successfully stored in the property
+	abstract T addStored(IoTProperty property);
+
+	// Throws if the property cannot be added to this collection
+	abstract IoTProperty check(IoTProperty property);
+
+	private T add(IoTProperty property, boolean stored) {
+		if (!stored)
+			throw new IllegalArgumentException("property.mode == ModeReadOnly || invalid value");
+		return addStored(property);
+	}
+
+	// Adds a property whose value has been changed by calling one of its setArrayValue*() methods
+	public T add(IoTProperty property) {
+		return add(check(property), property.mode != IoTProperty.ModeReadOnly);
+	}
+
+	public T setValueBoolean(IoTProperty property, boolean value) {
+		return add(property, check(property).storeValueBoolean(value));
+	}
+
+	public T setValueByte(IoTProperty property, int value) {
+		return add(property, check(property).storeValueByte(value));
+	}
+
+	public T setValueShort(IoTProperty property, int value) {
+		return add(property, check(property).storeValueShort(value));
+	}
+
+	public T setValueInt(IoTProperty property, int value) {
+		return add(property, check(property).storeValueInt(value));
+	}
+
+	public T setValueLong(IoTProperty property, long value) {
+		return add(property, check(property).storeValueLong(value));
+	}
+
+	public T setValueFloat(IoTProperty property, float value) {
+		return add(property, check(property).storeValueFloat(value));
+	}
+
+	public T setValueDouble(IoTProperty property, double value) {
+		return add(property, check(property).storeValueDouble(value));
+	}
+
+	public T setValueEnum(IoTProperty property, IoTProperty.Enum value) {
+		if (value == null)
+			throw new NullPointerException("value == null");
+		return add(property, check(property).storeValueEnum(value));
+	}
+
+	public T setValueRGBA(IoTProperty property, int value) {
+		return add(property, check(property).storeValueRGBA(value));
+	}
+
+	public T setValueBuffer(IoTProperty property, byte[] buffer, int offset, int length) {
+		return add(property, check(property).storeValueBuffer(buffer, offset, length));
+	}
+
+	public T setValueString(IoTProperty property, String string) {
+		return add(property, check(property).storeValueString(string));
+	}
+}
@@ -0,0 +1,175 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.util.BitSet;
+
+// Publishes the changes of a property (see IoTProperty.publisher()), or of all properties of a
+// device (see IoTDevice.publisher()), to any number of subscribers, each one with its own
+// demand. Only the fact that a property has changed is kept while a subscriber has no demand,
+// so when it requests more, it receives each changed property only once, and reads its latest
+// value (slow subscribers never block the client, nor make the memory usage grow).
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTPublisher {
+	public interface Subscriber {
+		void onSubscribe(Subscription subscription);
+		// Called in the thread that handles the observers' events (see IoTClient.setDispatchExecutor()),
+		// or in the thread that called Subscription.request()
+		void onNext(IoTProperty property);
+	}
+
+	public interface Subscription {
+		void request(long n);
+		void cancel();
+	}
+
+	private final class SubscriptionImpl implements Subscription {
+		private final Subscriber subscriber;
+		private final BitSet pending = new BitSet();
+		private long demand;
+		private boolean cancelled, draining;
+
+		SubscriptionImpl(Subscriber subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0)
+				throw new IllegalArgumentException("n <= 0");
+			synchronized (this) {
+				if (cancelled)
+					return;
+				demand = (((demand + n) < 0) ? Long.MAX_VALUE : (demand + n));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				cancelled = true;
+				pending.clear();
+			}
+			unsubscribe(this);
+		}
+
+		@MixedThreads
+		void publish_(int index) {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				pending.set(index);
+			}
+			drain();
+		}
+
+		@MixedThreads
+		private void drain() {
+			for (;;) {
+				final int index;
+				synchronized (this) {
+					// Only one thread delivers at a time (this also covers subscribers calling
+					// request() from inside onNext())
+					if (draining || cancelled || demand == 0 || (index = pending.nextSetBit(0)) < 0)
+						return;
+					pending.clear(index);
+					demand--;
+					draining = true;
+				}
+				try {
+					final IoTProperty property = propertyAt(index);
+					if (property != null)
+						subscriber.onNext(property);
+				} finally {
+					synchronized (this) {
+						draining = false;
+					}
+				}
+			}
+		}
+	}
+
+	private final IoTDevice device;
+	private final IoTProperty property; // null when publishing all properties of the device
+	private volatile SubscriptionImpl[] subscriptions = new SubscriptionImpl[0];
+
+	IoTPublisher(IoTDevice device, IoTProperty property) {
+		this.device = device;
+		this.property = property;
+	}
+
+	private IoTProperty propertyAt(int index) {
+		return ((property != null) ? property : device.propertyAt(index));
+	}
+
+	public void subscribe(Subscriber subscriber) {
+		final SubscriptionImpl subscription = new SubscriptionImpl(subscriber);
+		synchronized (this) {
+			final SubscriptionImpl[] subscriptions = this.subscriptions;
+			final SubscriptionImpl[] newSubscriptions = new SubscriptionImpl[subscriptions.length + 1];
+			System.arraycopy(subscriptions, 0, newSubscriptions, 0, subscriptions.length);
+			newSubscriptions[subscriptions.length] = subscription;
+			this.subscriptions = newSubscriptions;
+		}
+		subscriber.onSubscribe(subscription);
+	}
+
+	private void unsubscribe(SubscriptionImpl subscription) {
+		synchronized (this) {
+			final SubscriptionImpl[] subscriptions = this.subscriptions;
+			for (int i = subscriptions.length - 1; i >= 0; i--) {
+				if (subscriptions[i] == subscription) {
+					final SubscriptionImpl[] newSubscriptions = new SubscriptionImpl[subscriptions.length - 1];
+					System.arraycopy(subscriptions, 0, newSubscriptions, 0, i);
+					System.arraycopy(subscriptions, i + 1, newSubscriptions, i, subscriptions.length - i - 1);
+					this.subscriptions = newSubscriptions;
+					return;
+				}
+			}
+		}
+	}
+
+	public int subscriberCount() {
+		return subscriptions.length;
+	}
+
+	@MixedThreads
+	void publish_(IoTProperty property) {
+		final SubscriptionImpl[] subscriptions = this.subscriptions;
+		if (subscriptions.length == 0)
+			return;
+		final int index = ((this.property != null) ? 0 : device.propertyIndex(property));
+		for (SubscriptionImpl subscription : subscriptions)
+			subscription.publish_(index);
+	}
+}
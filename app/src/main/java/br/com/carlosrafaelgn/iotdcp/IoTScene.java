@@ -0,0 +1,255 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.util.Arrays;
+
+// Groups commands and property values, possibly spread across many devices, so all of them
+// can be sent in a single batch (Observer.onSceneFinished() is called only once, after all
+// members have finished, and the observers passed to IoTClient.setObserver() are not notified
+// about the individual members)
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTScene extends IoTPropertyValues<IoTScene> {
+	public interface Observer {
+		// result(member) tells the outcome of each member
+		void onSceneFinished(IoTClient client, IoTScene scene, int userArg);
+	}
+
+	public static final int ResultPending = -1;
+	public static final int ResultTimeout = -2;
+	public static final int ResultNotSent = -3;
+
+	public static final int DefaultMaximumConcurrency = 16;
+
+	public final IoTClient client;
+
+	private IoTInterface[] ioTInterfaces;
+	private IoTProperty[] properties; // null for commands
+	// Copies of the values taken when the properties were added, so changes made to the
+	// properties afterwards (or values received from the devices) do not affect the scene
+	private IoTProperty.Buffer[] values;
+	private int[] commands, results;
+	private int memberCount;
+	private volatile boolean running;
+	private Observer observer;
+	private int userArg;
+
+	// Only used in synchronized blocks, while the scene is running (the members are sent
+	// from the client thread as soon as the previous ones finish)
+	private int maximumConcurrency, nextMember, runningMembers, finishedMembers;
+
+	IoTScene(IoTClient client) {
+		this.client = client;
+		ioTInterfaces = new IoTInterface[16];
+		properties = new IoTProperty[16];
+		values = new IoTProperty.Buffer[16];
+		commands = new int[16];
+	}
+
+	private IoTScene add(IoTInterface ioTInterface, IoTProperty property, int command) {
+		if (running)
+			throw new IllegalStateException("running");
+		if (ioTInterface.device.client != client)
+			throw new IllegalArgumentException("ioTInterface.device.client != client");
+		final IoTProperty.Buffer value = ((property == null) ? null : property.copyValueBuffer());
+		if (property != null) {
+			for (int i = memberCount - 1; i >= 0; i--) {
+				// The member already exists, so only its value must be updated
+				if (properties[i] == property) {
+					values[i] = value;
+					return this;
+				}
+			}
+		}
+		if (memberCount >= ioTInterfaces.length) {
+			ioTInterfaces = Arrays.copyOf(ioTInterfaces, memberCount << 1);
+			properties = Arrays.copyOf(properties, memberCount << 1);
+			values = Arrays.copyOf(values, memberCount << 1);
+			commands = Arrays.copyOf(commands, memberCount << 1);
+		}
+		ioTInterfaces[memberCount] = ioTInterface;
+		properties[memberCount] = property;
+		values[memberCount] = value;
+		commands[memberCount] = command;
+		memberCount++;
+		return this;
+	}
+
+	@Override
+	IoTScene addStored(IoTProperty property) {
+		return add(property.ioTInterface, property, 0);
+	}
+
+	@Override
+	IoTProperty check(IoTProperty property) {
+		if (running)
+			throw new IllegalStateException("running");
+		return property;
+	}
+
+	public int memberCount() {
+		return memberCount;
+	}
+
+	public IoTInterface ioTInterface(int member) {
+		return ioTInterfaces[member];
+	}
+
+	// Returns null if the member is a command
+	public IoTProperty property(int member) {
+		return properties[member];
+	}
+
+	// Returns ResultPending, ResultTimeout, ResultNotSent or one of the IoTMessage.ResponseXXX codes
+	public int result(int member) {
+		synchronized (this) {
+			return ((results == null || member >= results.length) ? ResultPending : results[member]);
+		}
+	}
+
+	public int succeededCount() {
+		int count = 0;
+		synchronized (this) {
+			if (results != null) {
+				for (int i = results.length - 1; i >= 0; i--) {
+					if (results[i] == IoTMessage.ResponseOK)
+						count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public IoTScene addExecute(IoTInterface ioTInterface, int command) {
+		return add(ioTInterface, null, command);
+	}
+
+	public void clear() {
+		if (running)
+			throw new IllegalStateException("running");
+		Arrays.fill(ioTInterfaces, 0, memberCount, null);
+		Arrays.fill(properties, 0, memberCount, null);
+		Arrays.fill(values, 0, memberCount, null);
+		memberCount = 0;
+		results = null;
+	}
+
+	public boolean start(Observer observer) {
+		return start(DefaultMaximumConcurrency, observer, 0);
+	}
+
+	// Sends up to maximumConcurrency members at once, sending the next ones as the previous
+	// ones finish (members of the same device are still sent one at a time). The same scene
+	// can be started again after it has finished.
+	public boolean start(int maximumConcurrency, Observer observer, int userArg) {
+		if (maximumConcurrency < 1)
+			throw new IllegalArgumentException("maximumConcurrency < 1");
+		if (running || memberCount == 0)
+			return false;
+		final int firstWave = begin_(maximumConcurrency, observer, userArg);
+		boolean finished = false;
+		for (int i = 0; i < firstWave; i++) {
+			if (!client.sendSceneMember_(this, i))
+				finished = memberFinished_(i, ResultNotSent);
+		}
+		if (finished)
+			finished_();
+		return true;
+	}
+
+	// The value of the property, as it was when the member was added
+	IoTProperty.Buffer value_(int member) {
+		return values[member];
+	}
+
+	// Marks the scene as running, and returns how many members must be sent right away
+	int begin_(int maximumConcurrency, Observer observer, int userArg) {
+		running = true;
+		this.observer = observer;
+		this.userArg = userArg;
+		synchronized (this) {
+			if (results == null || results.length != memberCount)
+				results = new int[memberCount];
+			Arrays.fill(results, ResultPending);
+			this.maximumConcurrency = maximumConcurrency;
+			final int firstWave = Math.min(maximumConcurrency, memberCount);
+			nextMember = firstWave;
+			runningMembers = firstWave;
+			finishedMembers = 0;
+			return firstWave;
+		}
+	}
+
+	int command_(int member) {
+		return commands[member];
+	}
+
+	int userArg_() {
+		return userArg;
+	}
+
+	// Returns true when this was the last member, and the scene must be reported
+	@MixedThreads
+	boolean memberFinished_(int member, int result) {
+		int next;
+		for (;;) {
+			synchronized (this) {
+				if (results == null || results[member] != ResultPending)
+					return false;
+				results[member] = result;
+				runningMembers--;
+				if (++finishedMembers == memberCount)
+					return true;
+				if (runningMembers >= maximumConcurrency || nextMember >= memberCount)
+					return false;
+				next = nextMember++;
+				runningMembers++;
+			}
+			if (client.sendSceneMember_(this, next))
+				return false;
+			// Could not even send the next member, so finish it right away
+			member = next;
+			result = ResultNotSent;
+		}
+	}
+
+	// Called by the dispatcher (usually in the main thread), after all members have finished
+	void finished_() {
+		running = false;
+		final Observer observer = this.observer;
+		this.observer = null;
+		if (observer != null)
+			observer.onSceneFinished(client, this, userArg);
+	}
+}
@@ -29,10 +29,47 @@
 //
 package br.com.carlosrafaelgn.iotdcp;
 
+import java.net.DatagramPacket;
 import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.HashMap;
 
 final class IoTSentMessage {
+	// Tracks all the chunks of a value too large to be sent/received with a single datagram
+	// (accessed only by the client thread, until the whole transfer is reported as finished)
+	static final class Transfer {
+		final IoTProperty property;
+		final int messageType; // MessageGetProperty or MessageSetProperty (as reported to the observer)
+		final int userArg;
+		int remainingChunks, responseCode;
+		boolean timedOut;
+		volatile boolean abandoned;
+		IoTFuture future; // Moved to the message sent instead of the chunks, when the transfer is abandoned
+
+		Transfer(IoTProperty property, int messageType, int chunkCount, int userArg) {
+			this.property = property;
+			this.messageType = messageType;
+			this.userArg = userArg;
+			remainingChunks = chunkCount;
+			responseCode = IoTMessage.ResponseOK;
+		}
+
+		// Returns true when this was the last chunk, and the transfer must be reported
+		@SecondaryThread
+		synchronized boolean chunkFinished_(int responseCode, boolean timedOut) {
+			if (timedOut)
+				this.timedOut = true;
+			else if (this.responseCode == IoTMessage.ResponseOK)
+				this.responseCode = responseCode;
+			if (--remainingChunks != 0 || abandoned)
+				return false;
+			if (future != null)
+				future.complete_(this.timedOut ? IoTFuture.ResultTimeout : this.responseCode);
+			return true;
+		}
+	}
+
 	static final class Cache {
 		private static final int MaxCacheSize = 32;
 		private final IoTSentMessage[] cache = new IoTSentMessage[MaxCacheSize];
@@ -90,6 +127,14 @@ final class IoTSentMessage {
 			sentMessage.password = null;
 			sentMessage.next = null;
 			sentMessage.value = null;
+			sentMessage.properties = null;
+			sentMessage.ranges = null;
+			sentMessage.transfer = null;
+			sentMessage.pendingSession = null;
+			sentMessage.keepAlive = false;
+			sentMessage.scene = null;
+			sentMessage.future = null;
+			sentMessage.generation++;
 
 			for (int i = MaxCacheSize - 1; i >= 0; i--) {
 				// Try to return this message at the first available spot
@@ -112,12 +157,18 @@ final class IoTSentMessage {
 			}
 		}
 
+		// A message waiting for a response can be finished by its response (in a partition,
+		// see IoTClient), by a timeout (in the client thread) or by a failure (in the sender
+		// thread), so whoever wants to finish it must claim it first, and only the one that
+		// succeeds owns it (and must release it)
 		@SecondaryThread
-		void unmarkAsSentMessageAndRelease_(IoTSentMessage sentMessage) {
+		boolean claim_(IoTSentMessage sentMessage) {
 			synchronized (cache) {
+				if (sentMessages.get(sentMessage) != sentMessage)
+					return false;
 				sentMessages.remove(sentMessage);
-				doRelease_(sentMessage);
 				waitingForResponses = (sentMessages.size() != 0);
+				return true;
 			}
 		}
 
@@ -128,10 +179,45 @@ final class IoTSentMessage {
 			}
 		}
 
+		// Returns the message sent that matches placeholder, already claimed (see claim_()),
+		// except for MessageQueryDevice, which is answered by several devices, and is only
+		// finished when it times out (so nothing but its presence can be used by the caller)
+		@SecondaryThread
+		IoTSentMessage claimActualSentMessage_(IoTSentMessage placeholder) {
+			synchronized (cache) {
+				final IoTSentMessage sentMessage = sentMessages.get(placeholder);
+				if (sentMessage != null && sentMessage.messageType != IoTMessage.MessageQueryDevice) {
+					sentMessages.remove(sentMessage);
+					waitingForResponses = (sentMessages.size() != 0);
+				}
+				return sentMessage;
+			}
+		}
+
+		// Returns the generation of the message, to be checked by buildRetry_(), or -1 if the
+		// message is no longer waiting for a response
+		@SecondaryThread
+		int prepareRetry_(IoTSentMessage sentMessage, int now) {
+			synchronized (cache) {
+				if (sentMessages.get(sentMessage) != sentMessage)
+					return -1;
+				sentMessage.attempts++;
+				sentMessage.timestamp = now;
+				return sentMessage.generation;
+			}
+		}
+
+		// Retries are built while holding the lock, because the message is still waiting for a
+		// response, and could be claimed and released at any moment. Returns false if the
+		// message has been finished (or even reused) since the retry was prepared.
 		@SecondaryThread
-		IoTSentMessage getActualSentMessage_(IoTSentMessage placeholder) {
+		boolean buildRetry_(IoTSentMessage sentMessage, int generation, DatagramPacket packet, byte[] dstBuffer, IoTCompression compression) throws GeneralSecurityException {
 			synchronized (cache) {
-				return sentMessages.get(placeholder);
+				if (sentMessage.generation != generation || sentMessages.get(sentMessage) != sentMessage)
+					return false;
+				packet.setSocketAddress(sentMessage.socketAddress);
+				packet.setData(dstBuffer, 0, sentMessage.build_(dstBuffer, compression));
+				return true;
 			}
 		}
 
@@ -157,12 +243,12 @@ final class IoTSentMessage {
 				0);
 		}
 
-		IoTSentMessage queryDevice(SocketAddress socketAddress) {
+		IoTSentMessage queryDevice(SocketAddress socketAddress, int sequenceNumber) {
 			return create_(socketAddress,
 				null,
 				IoTMessage.MessageQueryDevice,
 				IoTMessage.InvalidClientId,
-				IoTMessage.MaximumSequenceNumber,
+				sequenceNumber,
 				null,
 				0,
 				0,
@@ -208,7 +294,7 @@ final class IoTSentMessage {
 				IoTMessage.MessageChangeName,
 				IoTMessage.InvalidClientId,
 				IoTMessage.MaximumSequenceNumber,
-				(name == null || name.length() == 0) ? null : name.getBytes(),
+				(name == null || name.length() == 0) ? null : name.getBytes(IoTMessage.UTF8),
 				0,
 				0,
 				0,
@@ -231,17 +317,23 @@ final class IoTSentMessage {
 		}
 
 		IoTSentMessage handshake(IoTDevice device, int userArg) {
-			return create_(device.socketAddress,
+			final int flags = (device.isCompressionSupported() ? IoTMessage.HandshakeFlagCompression : 0) |
+				(device.isEncryptionRequired() ? IoTMessage.HandshakeFlagEncryption : 0);
+			final IoTSentMessage sentMessage = create_(device.socketAddress,
 				device,
 				IoTMessage.MessageHandshake,
 				IoTMessage.InvalidClientId,
 				device.nextSequenceNumber(),
 				device.password,
-				0,
-				0,
+				(flags == 0) ? 0 : 1,
+				flags,
 				0,
 				null,
 				userArg);
+			// IoTClient never sends this handshake without a password (see IoTSession)
+			if (device.isEncryptionRequired() && device.password != null)
+				sentMessage.pendingSession = new IoTSession();
+			return sentMessage;
 		}
 
 		IoTSentMessage ping(IoTDevice device, int userArg) {
@@ -319,6 +411,22 @@ final class IoTSentMessage {
 				userArg);
 		}
 
+		IoTSentMessage getProperties(IoTDevice device, IoTProperty[] properties, int userArg) {
+			final IoTSentMessage sentMessage = create_(device.socketAddress,
+				device,
+				IoTMessage.MessageGetProperty,
+				device.clientId,
+				device.nextSequenceNumber(),
+				device.password,
+				0,
+				0,
+				0,
+				null,
+				userArg);
+			sentMessage.properties = properties;
+			return sentMessage;
+		}
+
 		IoTSentMessage setProperty(IoTInterface ioTInterface, int propertyIndex, IoTProperty.Buffer value, int userArg) {
 			final IoTDevice device = ioTInterface.device;
 			return create_(device.socketAddress,
@@ -333,6 +441,72 @@ final class IoTSentMessage {
 				value,
 				userArg);
 		}
+
+		IoTSentMessage getPropertyRange(IoTInterface ioTInterface, int propertyIndex, int start, int end, Transfer transfer) {
+			final IoTDevice device = ioTInterface.device;
+			final IoTSentMessage sentMessage = create_(device.socketAddress,
+				device,
+				IoTMessage.MessageGetPropertyRange,
+				device.clientId,
+				device.nextSequenceNumber(),
+				device.password,
+				0,
+				ioTInterface.index,
+				propertyIndex,
+				null,
+				transfer.userArg);
+			sentMessage.ranges = new int[] { start, end };
+			sentMessage.transfer = transfer;
+			return sentMessage;
+		}
+
+		IoTSentMessage setPropertyRanges(IoTInterface ioTInterface, int propertyIndex, IoTProperty.Buffer value, int[] ranges, int userArg) {
+			final IoTDevice device = ioTInterface.device;
+			final IoTSentMessage sentMessage = create_(device.socketAddress,
+				device,
+				IoTMessage.MessageSetPropertyRange,
+				device.clientId,
+				device.nextSequenceNumber(),
+				device.password,
+				0,
+				ioTInterface.index,
+				propertyIndex,
+				value,
+				userArg);
+			sentMessage.ranges = ranges;
+			return sentMessage;
+		}
+
+		IoTSentMessage setProperties(IoTDevice device, IoTProperty[] properties, int userArg) {
+			final IoTSentMessage sentMessage = create_(device.socketAddress,
+				device,
+				IoTMessage.MessageSetProperty,
+				device.clientId,
+				device.nextSequenceNumber(),
+				device.password,
+				0,
+				0,
+				0,
+				null,
+				userArg);
+			sentMessage.properties = properties;
+			return sentMessage;
+		}
+
+		IoTSentMessage subscribeProperty(IoTInterface ioTInterface, int propertyIndex, boolean subscribe, int userArg) {
+			final IoTDevice device = ioTInterface.device;
+			return create_(device.socketAddress,
+				device,
+				subscribe ? IoTMessage.MessageSubscribeProperty : IoTMessage.MessageUnsubscribeProperty,
+				device.clientId,
+				device.nextSequenceNumber(),
+				device.password,
+				2,
+				ioTInterface.index,
+				propertyIndex,
+				null,
+				userArg);
+		}
 	}
 
 	// This class used to be immutable, but after running several tests,
@@ -344,10 +518,22 @@ final class IoTSentMessage {
 	int executedInterfaceIndex, executedCommand; // Only used with MessageExecute
 	byte[] password;
 	private IoTProperty.Buffer value;
-	private int clientId, sequenceNumber, hash, hash0, payloadLength, payload0, payload1;
+	private IoTProperty[] properties; // Used when getting/setting more than one property with a single message
+	private int[] ranges; // [start, end) pairs, only used with MessageGetPropertyRange/MessageSetPropertyRange
+	Transfer transfer; // Only used when this message carries a chunk of a larger value
+	IoTSession pendingSession; // Only used with MessageHandshake, when the device requires encryption
+	boolean keepAlive; // Only used with MessagePing, when sent by the client itself (never reported to the observer)
+	IoTScene scene; // Only used when this message is a member of a scene (never reported to the observer)
+	int sceneMember;
+	IoTFuture future; // Completed by the client thread, before the observer is notified
+	int payload0, payload1; // Usually the interface index and the property index/command
+	private int clientId, sequenceNumber, hash, hash0, payloadLength;
 
 	IoTSentMessage next;
 	int attempts, timestamp;
+	// Incremented whenever this message is returned to the cache (guarded by the cache lock),
+	// so a retry posted to the sender thread can tell whether it is still the same message
+	private int generation;
 
 	@SecondaryThread
 	private IoTSentMessage() {
@@ -388,21 +574,25 @@ final class IoTSentMessage {
 		hash = socketAddress.hashCode() ^ (messageType << 24) ^ (sequenceNumber << 8) ^ hash0;
 	}
 
+	IoTProperty[] properties() {
+		return properties;
+	}
+
 	@SecondaryThread
 	boolean isSimilarGetSetPropertyMessage(IoTSentMessage sentMessage) {
-		// Currently, it is not possible to send a message requesting to get/set more than one
-		// property at the same time, so we just need to check payload0 and payload1 (when this
-		// scenario changes, this method will have to be rewritten)
-		//
 		// There is no need for checking messageType because this method assumes the caller has
 		// already done so
+		if (properties != null || sentMessage.properties != null)
+			return (properties != null &&
+				sentMessage.properties != null &&
+				Arrays.equals(properties, sentMessage.properties));
 		return (payload0 == sentMessage.payload0 &&
 			payload1 == sentMessage.payload1);
 	}
 
 	@SecondaryThread
 	@SuppressWarnings("SynchronizeOnNonFinalField")
-	int build_(byte[] dstBuffer) {
+	int build_(byte[] dstBuffer, IoTCompression compression) throws GeneralSecurityException {
 		if (password != null && password.length > IoTMessage.MaxPasswordLength)
 			throw new IllegalArgumentException("0 <= password.length <= MaxPasswordLength");
 		if (payloadLength < 0 || payloadLength > IoTMessage.MaxPayloadLength)
@@ -412,8 +602,14 @@ final class IoTSentMessage {
 		dstBuffer[2] = (byte)clientId;
 		dstBuffer[3] = (byte)sequenceNumber;
 		dstBuffer[4] = (byte)(sequenceNumber >>> 8);
+		// Once a session has been established, the password is no longer sent, as all
+		// messages are authenticated with keys derived from it (see IoTSession), and it is
+		// never sent to devices that require encryption, but have no session yet (only the
+		// handshake carries it)
+		final IoTSession session = ((device == null || messageType == IoTMessage.MessageQueryDevice || messageType == IoTMessage.MessageHandshake) ? null : device.session);
 		int dstOffset;
-		if (password == null || password.length == 0) {
+		if (session != null || password == null || password.length == 0 ||
+			(device != null && messageType != IoTMessage.MessageHandshake && device.isEncryptionRequired())) {
 			dstBuffer[5] = 0;
 			dstOffset = 6;
 		} else {
@@ -421,8 +617,73 @@ final class IoTSentMessage {
 			System.arraycopy(password, 0, dstBuffer, 6, password.length);
 			dstOffset = 6 + password.length;
 		}
-
-		if (value != null) {
+		final int lengthOffset = dstOffset;
+
+		if (properties != null) {
+			final int payloadOffset = dstOffset;
+			dstOffset += 2;
+			if (messageType == IoTMessage.MessageSetProperty) {
+				// Multiple (interfaceIndex, propertyIndex, length, value) records
+				for (IoTProperty property : properties) {
+					final IoTProperty.Buffer value = property.valueBuffer();
+					synchronized (value) {
+						final int valueLength = value.length;
+						if ((dstOffset + 4 + valueLength - payloadOffset - 2) > IoTMessage.MaxPayloadLength)
+							throw new IllegalArgumentException("0 <= payloadLength <= MaxPayloadLength");
+						dstBuffer[dstOffset++] = (byte)property.ioTInterface.index;
+						dstBuffer[dstOffset++] = (byte)property.index;
+						dstBuffer[dstOffset++] = (byte)valueLength;
+						dstBuffer[dstOffset++] = (byte)(valueLength >>> 8);
+						if (valueLength != 0) {
+							System.arraycopy(value.bytes(), 0, dstBuffer, dstOffset, valueLength);
+							dstOffset += valueLength;
+						}
+					}
+				}
+			} else {
+				// Multiple (interfaceIndex, propertyIndex) pairs
+				for (IoTProperty property : properties) {
+					dstBuffer[dstOffset++] = (byte)property.ioTInterface.index;
+					dstBuffer[dstOffset++] = (byte)property.index;
+				}
+			}
+			payloadLength = dstOffset - payloadOffset - 2;
+			dstBuffer[payloadOffset] = (byte)payloadLength;
+			dstBuffer[payloadOffset + 1] = (byte)(payloadLength >>> 8);
+		} else if (ranges != null && value == null) {
+			// interfaceIndex, propertyIndex, offset, length (MessageGetPropertyRange)
+			final int offset = ranges[0], length = ranges[1] - offset;
+			payloadLength = 6;
+			dstBuffer[dstOffset++] = 6;
+			dstBuffer[dstOffset++] = 0;
+			dstBuffer[dstOffset++] = (byte)payload0;
+			dstBuffer[dstOffset++] = (byte)payload1;
+			dstBuffer[dstOffset++] = (byte)offset;
+			dstBuffer[dstOffset++] = (byte)(offset >>> 8);
+			dstBuffer[dstOffset++] = (byte)length;
+			dstBuffer[dstOffset++] = (byte)(length >>> 8);
+		} else if (ranges != null) {
+			// interfaceIndex, propertyIndex, rangeCount, followed by multiple (offset, length, bytes) records
+			synchronized (value) {
+				payloadLength = 3;
+				for (int i = ranges.length - 2; i >= 0; i -= 2)
+					payloadLength += 4 + ranges[i + 1] - ranges[i];
+				dstBuffer[dstOffset++] = (byte)payloadLength;
+				dstBuffer[dstOffset++] = (byte)(payloadLength >>> 8);
+				dstBuffer[dstOffset++] = (byte)payload0;
+				dstBuffer[dstOffset++] = (byte)payload1;
+				dstBuffer[dstOffset++] = (byte)(ranges.length >> 1);
+				for (int i = 0; i < ranges.length; i += 2) {
+					final int offset = ranges[i], length = ranges[i + 1] - offset;
+					dstBuffer[dstOffset++] = (byte)offset;
+					dstBuffer[dstOffset++] = (byte)(offset >>> 8);
+					dstBuffer[dstOffset++] = (byte)length;
+					dstBuffer[dstOffset++] = (byte)(length >>> 8);
+					System.arraycopy(value.bytes(), offset, dstBuffer, dstOffset, length);
+					dstOffset += length;
+				}
+			}
+		} else if (value != null) {
 			// It is safe to synchronize on value because we know it will not
 			// change throughout the execution of this method (it is changed
 			// only when a message is created or released)
@@ -436,10 +697,18 @@ final class IoTSentMessage {
 				dstBuffer[dstOffset++] = (byte)valueLength;
 				dstBuffer[dstOffset++] = (byte)(valueLength >>> 8);
 				if (valueLength != 0) {
-					System.arraycopy(value.buffer, 0, dstBuffer, dstOffset, valueLength);
+					System.arraycopy(value.bytes(), 0, dstBuffer, dstOffset, valueLength);
 					dstOffset += valueLength;
 				}
 			}
+		} else if (pendingSession != null) {
+			// Handshake flags followed by our nonce
+			payloadLength = 1 + IoTSession.NonceLength;
+			dstBuffer[dstOffset++] = (byte)payloadLength;
+			dstBuffer[dstOffset++] = 0;
+			dstBuffer[dstOffset++] = (byte)payload0;
+			System.arraycopy(pendingSession.clientNonce, 0, dstBuffer, dstOffset, IoTSession.NonceLength);
+			dstOffset += IoTSession.NonceLength;
 		} else {
 			switch (payloadLength) {
 			case 1:
@@ -460,6 +729,28 @@ final class IoTSentMessage {
 			}
 		}
 
+		if (compression != null && device != null && device.isCompressionSupported()) {
+			final int compressedLength = compression.compress_(dstBuffer, lengthOffset + 2, dstOffset - lengthOffset - 2);
+			if (compressedLength > 0) {
+				// payloadLength is left untouched, because the message is built again from
+				// scratch in case it needs to be sent again
+				dstBuffer[1] = (byte)(messageType | IoTMessage.MessageFlagCompressed);
+				dstBuffer[lengthOffset] = (byte)compressedLength;
+				dstBuffer[lengthOffset + 1] = (byte)(compressedLength >>> 8);
+				System.arraycopy(compression.buffer, 0, dstBuffer, lengthOffset + 2, compressedLength);
+				dstOffset = lengthOffset + 2 + compressedLength;
+			}
+		}
+
+		if (session != null) {
+			// The flag must be set before encrypting, because it is authenticated (see IoTSession)
+			dstBuffer[1] |= IoTMessage.MessageFlagEncrypted;
+			final int encryptedLength = session.encrypt_(dstBuffer, lengthOffset + 2, dstOffset - lengthOffset - 2);
+			dstBuffer[lengthOffset] = (byte)encryptedLength;
+			dstBuffer[lengthOffset + 1] = (byte)(encryptedLength >>> 8);
+			dstOffset = lengthOffset + 2 + encryptedLength;
+		}
+
 		dstBuffer[dstOffset++] = IoTMessage.EndOfPacket;
 		return dstOffset;
 	}
@@ -0,0 +1,219 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Session encryption, used with devices that have IoTDevice.FlagEncryptionRequired
+//
+// During the handshake, client and device exchange 16-byte random nonces, and the session
+// keys are derived from those nonces and from the device password (HMAC-SHA256). From then
+// on, every payload is encrypted with AES-128 in CTR mode and authenticated with a truncated
+// HMAC-SHA256 tag (encrypt-then-MAC), covering the header as well, so the password no longer
+// needs to be sent in clear text. An encrypted payload is made of a 4-byte counter (the nonce,
+// which never repeats within a session, even when a message is sent again), the ciphertext
+// and the tag.
+//
+// AES-GCM is not available on all supported API levels, which is why CTR + HMAC is used.
+// The keystream is produced with a single AES/ECB instance, so the Cipher and Mac instances
+// are created only once per session, and nothing is allocated per message. The send side is
+// only used by the sender thread, and the receive side only by the client thread.
+final class IoTSession {
+	static final int NonceLength = 16;
+	private static final int CounterLength = 4;
+	private static final int TagLength = 16;
+	static final int Overhead = CounterLength + TagLength;
+
+	private static final int DirectionClientToDevice = 0;
+	private static final int DirectionDeviceToClient = 1;
+
+	// Bytes [1, 6) of both headers (message type, client id, sequence number and password
+	// length/response code) are authenticated along with the payload, in both directions,
+	// always with MessageFlagEncrypted already set in the message type (the sender sets the
+	// flag before computing the tag, and the receiver only clears it after verifying the tag)
+	private static final int AuthenticatedHeaderOffset = 1;
+	private static final int AuthenticatedHeaderLength = 5;
+
+	private static SecureRandom random;
+
+	final byte[] clientNonce;
+
+	private final byte[] salt = new byte[7];
+
+	private Cipher sendCipher;
+	private Mac sendMac;
+	private final byte[] sendBlock = new byte[16], sendKeyStream = new byte[16], sendTag = new byte[32];
+	private int sendCounter;
+
+	private Cipher receiveCipher;
+	private Mac receiveMac;
+	private final byte[] receiveBlock = new byte[16], receiveKeyStream = new byte[16], receiveTag = new byte[32];
+	private long lastReceivedCounter;
+
+	private static synchronized SecureRandom random() {
+		if (random == null)
+			random = new SecureRandom();
+		return random;
+	}
+
+	IoTSession() {
+		clientNonce = new byte[NonceLength];
+		random().nextBytes(clientNonce);
+	}
+
+	// Called when the device responds to the handshake with its own nonce
+	//
+	// Sessions are never established without a password, because the nonces are sent in clear
+	// text, and anyone watching the handshake would be able to derive the keys
+	@SecondaryThread
+	boolean establish_(byte[] password, int clientId, byte[] deviceNonce, int deviceNonceOffset) {
+		if (password == null || password.length == 0)
+			return false;
+		try {
+			final Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(password, "HmacSHA256"));
+			mac.update(clientNonce);
+			mac.update(deviceNonce, deviceNonceOffset, NonceLength);
+			mac.update((byte)clientId);
+			final byte[] prk = mac.doFinal();
+
+			final SecretKeySpec encryptionKey = new SecretKeySpec(prk, 0, 16, "AES");
+			System.arraycopy(prk, 16, salt, 0, salt.length);
+
+			mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+			mac.update((byte)1);
+			final SecretKeySpec macKey = new SecretKeySpec(mac.doFinal(), "HmacSHA256");
+
+			sendCipher = Cipher.getInstance("AES/ECB/NoPadding");
+			sendCipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
+			sendMac = Mac.getInstance("HmacSHA256");
+			sendMac.init(macKey);
+
+			receiveCipher = Cipher.getInstance("AES/ECB/NoPadding");
+			receiveCipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
+			receiveMac = Mac.getInstance("HmacSHA256");
+			receiveMac.init(macKey);
+
+			sendCounter = 0;
+			lastReceivedCounter = -1;
+			return true;
+		} catch (GeneralSecurityException ex) {
+			return false;
+		}
+	}
+
+	private void xorKeyStream(Cipher cipher, byte[] block, byte[] keyStream, int direction, int counter, byte[] buffer, int offset, int length) throws GeneralSecurityException {
+		// salt (7 bytes) | direction (1 byte) | counter (4 bytes) | block index (4 bytes)
+		System.arraycopy(salt, 0, block, 0, 7);
+		block[7] = (byte)direction;
+		block[8] = (byte)(counter >>> 24);
+		block[9] = (byte)(counter >>> 16);
+		block[10] = (byte)(counter >>> 8);
+		block[11] = (byte)counter;
+		for (int blockIndex = 0; length > 0; blockIndex++) {
+			block[12] = (byte)(blockIndex >>> 24);
+			block[13] = (byte)(blockIndex >>> 16);
+			block[14] = (byte)(blockIndex >>> 8);
+			block[15] = (byte)blockIndex;
+			cipher.update(block, 0, 16, keyStream, 0);
+			final int count = ((length < 16) ? length : 16);
+			for (int i = 0; i < count; i++)
+				buffer[offset + i] ^= keyStream[i];
+			offset += count;
+			length -= count;
+		}
+	}
+
+	// Encrypts the payload of a request in place, returning the new payload length (the
+	// buffer must have Overhead extra bytes after the payload)
+	@SecondaryThread
+	int encrypt_(byte[] packet, int payloadOffset, int payloadLength) throws GeneralSecurityException {
+		if (sendCounter == -1)
+			throw new GeneralSecurityException("Session counter exhausted");
+		final int counter = sendCounter++;
+
+		System.arraycopy(packet, payloadOffset, packet, payloadOffset + CounterLength, payloadLength);
+		packet[payloadOffset] = (byte)(counter >>> 24);
+		packet[payloadOffset + 1] = (byte)(counter >>> 16);
+		packet[payloadOffset + 2] = (byte)(counter >>> 8);
+		packet[payloadOffset + 3] = (byte)counter;
+		xorKeyStream(sendCipher, sendBlock, sendKeyStream, DirectionClientToDevice, counter, packet, payloadOffset + CounterLength, payloadLength);
+
+		payloadLength += CounterLength;
+		sendMac.update(packet, AuthenticatedHeaderOffset, AuthenticatedHeaderLength);
+		sendMac.update(packet, payloadOffset, payloadLength);
+		sendMac.doFinal(sendTag, 0);
+		System.arraycopy(sendTag, 0, packet, payloadOffset + payloadLength, TagLength);
+
+		return payloadLength + TagLength;
+	}
+
+	// Authenticates and decrypts the payload of a response in place, returning the new
+	// payload length, or -1 if the payload is not authentic or is a replay
+	@SecondaryThread
+	int decrypt_(byte[] packet, int payloadOffset, int payloadLength) {
+		if (receiveCipher == null || payloadLength < Overhead)
+			return -1;
+
+		final int ciphertextLength = payloadLength - Overhead;
+		final long counter = (((packet[payloadOffset] & 0xFF) << 24) |
+			((packet[payloadOffset + 1] & 0xFF) << 16) |
+			((packet[payloadOffset + 2] & 0xFF) << 8) |
+			(packet[payloadOffset + 3] & 0xFF)) & 0xFFFFFFFFL;
+		if (counter <= lastReceivedCounter)
+			return -1;
+
+		try {
+			receiveMac.update(packet, AuthenticatedHeaderOffset, AuthenticatedHeaderLength);
+			receiveMac.update(packet, payloadOffset, CounterLength + ciphertextLength);
+			receiveMac.doFinal(receiveTag, 0);
+			// Constant time comparison
+			int difference = 0;
+			final int tagOffset = payloadOffset + CounterLength + ciphertextLength;
+			for (int i = 0; i < TagLength; i++)
+				difference |= (receiveTag[i] ^ packet[tagOffset + i]);
+			if (difference != 0)
+				return -1;
+
+			xorKeyStream(receiveCipher, receiveBlock, receiveKeyStream, DirectionDeviceToClient, (int)counter, packet, payloadOffset + CounterLength, ciphertextLength);
+		} catch (GeneralSecurityException ex) {
+			return -1;
+		}
+
+		lastReceivedCounter = counter;
+		System.arraycopy(packet, payloadOffset + CounterLength, packet, payloadOffset, ciphertextLength);
+		return ciphertextLength;
+	}
+}
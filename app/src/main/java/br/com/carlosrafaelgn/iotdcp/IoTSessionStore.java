@@ -0,0 +1,96 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Opt-in store (see IoTClient.setSessionStore()) that keeps the client id and the sequence
+// number of each device, keyed by the device uuid, so that sessions survive client restarts
+// and devices do not need a new handshake every time the app starts
+//
+// Saving the sequence number after every message would be too expensive, so blocks of
+// ReservedSequenceNumbers are reserved at a time, and the end of the current block is what
+// gets saved: after a restart, the device is resumed from a sequence number it has never seen
+//
+// Sessions with devices that require encryption are never stored, because their keys are
+// only kept in memory
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTSessionStore {
+	private static final String DefaultName = "IoTSessionStore";
+	private static final int ReservedSequenceNumbers = 256;
+
+	private final SharedPreferences preferences;
+
+	public IoTSessionStore(Context context) {
+		this(context, DefaultName);
+	}
+
+	public IoTSessionStore(Context context, String name) {
+		preferences = context.getApplicationContext().getSharedPreferences(name, Context.MODE_PRIVATE);
+	}
+
+	public void clear() {
+		preferences.edit().clear().apply();
+	}
+
+	// Returns true if a stored session has been restored
+	@SecondaryThread
+	boolean resume_(IoTDevice device) {
+		if (device.isEncryptionRequired())
+			return false;
+		final long session = preferences.getLong(device.uuid.toString(), -1);
+		if (session < 0)
+			return false;
+		final int clientId = (int)(session >>> 16) & 0xFF;
+		if (clientId == IoTMessage.InvalidClientId)
+			return false;
+		synchronized (this) {
+			device.clientId = clientId;
+			device.sequenceNumber = (int)session & IoTMessage.MaximumSequenceNumber;
+			// Reserve a new block before sending the next message
+			device.reservedSequenceNumbers = 0;
+		}
+		return true;
+	}
+
+	@MixedThreads
+	synchronized void save_(IoTDevice device) {
+		if (device.isEncryptionRequired() || device.clientId == IoTMessage.InvalidClientId)
+			return;
+		device.reservedSequenceNumbers = ReservedSequenceNumbers;
+		preferences.edit().putLong(device.uuid.toString(), ((long)device.clientId << 16) | ((device.sequenceNumber + ReservedSequenceNumbers) & IoTMessage.MaximumSequenceNumber)).apply();
+	}
+
+	@MixedThreads
+	void remove_(IoTDevice device) {
+		preferences.edit().remove(device.uuid.toString()).apply();
+	}
+}
@@ -0,0 +1,138 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.util.HashMap;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class IoTUnitConverter {
+	// Converters are immutable, so they are created only once and shared by everyone
+	private static final HashMap<Long, IoTUnitConverter> converters = new HashMap<>(32);
+
+	public final int fromUnitNum, fromUnitDen;
+	public final int toUnitNum, toUnitDen, toExponent;
+	// convertedValue = (scaledValue * factor) + offset
+	public final double factor, offset;
+
+	private IoTUnitConverter(int fromUnitNum, int fromUnitDen, int toUnitNum, int toUnitDen, int toExponent, double factor, double offset) {
+		this.fromUnitNum = fromUnitNum;
+		this.fromUnitDen = fromUnitDen;
+		this.toUnitNum = toUnitNum;
+		this.toUnitDen = toUnitDen;
+		this.toExponent = toExponent;
+		this.factor = factor;
+		this.offset = offset;
+	}
+
+	@Override
+	public String toString() {
+		return "x * " + factor + " + " + offset;
+	}
+
+	// Units that can be converted into one another share the same base unit
+	private static int baseUnit(int unit) {
+		switch (unit) {
+		case IoTProperty.UnitDegree:
+			return IoTProperty.UnitRadian;
+		case IoTProperty.UnitByte:
+			return IoTProperty.UnitBit;
+		case IoTProperty.UnitDegreeCelsius:
+			return IoTProperty.UnitKelvin;
+		default:
+			return unit;
+		}
+	}
+
+	private static double baseUnitFactor(int unit) {
+		switch (unit) {
+		case IoTProperty.UnitDegree:
+			return Math.PI / 180.0;
+		case IoTProperty.UnitByte:
+			return 8.0;
+		default:
+			return 1.0;
+		}
+	}
+
+	private static double baseUnitOffset(int unit) {
+		return ((unit == IoTProperty.UnitDegreeCelsius) ? 273.15 : 0.0);
+	}
+
+	private static boolean isNumeric(int unit) {
+		switch (unit) {
+		case IoTProperty.UnitBool:
+		case IoTProperty.UnitRGB:
+		case IoTProperty.UnitRGBA:
+		case IoTProperty.UnitUTF8Text:
+		case IoTProperty.UnitEnum:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	private static IoTUnitConverter create(int fromUnitNum, int fromUnitDen, int toUnitNum, int toUnitDen, int toExponent) {
+		if (!isNumeric(fromUnitNum) || !isNumeric(toUnitNum) ||
+			baseUnit(fromUnitNum) != baseUnit(toUnitNum) ||
+			baseUnit(fromUnitDen) != baseUnit(toUnitDen))
+			return null;
+
+		final double fromFactor = baseUnitFactor(fromUnitNum) / baseUnitFactor(fromUnitDen),
+			toFactor = (baseUnitFactor(toUnitNum) / baseUnitFactor(toUnitDen)) * IoTProperty.multiplierForExponent(toExponent);
+
+		// Offsets only make sense for absolute values (°C -> K, but not °C/s -> K/s)
+		final double offset = ((fromUnitDen == IoTProperty.UnitOne && toUnitDen == IoTProperty.UnitOne) ?
+			(baseUnitOffset(fromUnitNum) - baseUnitOffset(toUnitNum)) :
+			0.0);
+
+		return new IoTUnitConverter(fromUnitNum, fromUnitDen, toUnitNum, toUnitDen, toExponent, fromFactor / toFactor, offset / toFactor);
+	}
+
+	// Returns null when the units are not compatible (such as W -> m, or when text/enum/color units are involved)
+	public static IoTUnitConverter get(int fromUnitNum, int fromUnitDen, int toUnitNum, int toUnitDen, int toExponent) {
+		final Long key = ((long)(fromUnitNum & 0xFF) << 32) |
+			((long)(fromUnitDen & 0xFF) << 24) |
+			((toUnitNum & 0xFF) << 16) |
+			((toUnitDen & 0xFF) << 8) |
+			(toExponent & 0xFF);
+		synchronized (converters) {
+			IoTUnitConverter converter = converters.get(key);
+			if (converter == null && !converters.containsKey(key)) {
+				converter = create(fromUnitNum, fromUnitDen, toUnitNum, toUnitDen, toExponent);
+				converters.put(key, converter);
+			}
+			return converter;
+		}
+	}
+
+	public double convert(double scaledValue) {
+		return (scaledValue * factor) + offset;
+	}
+}
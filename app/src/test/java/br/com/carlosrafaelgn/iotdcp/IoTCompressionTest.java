@@ -0,0 +1,123 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IoTCompressionTest {
+	private static byte[] roundTrip(IoTCompression compression, byte[] src, int srcOffset, int length) {
+		final int compressedLength = compression.compress_(src, srcOffset, length);
+		assertTrue(compressedLength > 0);
+		// The compressed data, including its prefix, must never be larger than the original data
+		assertTrue(compressedLength < length);
+		final byte[] decompressed = IoTCompression.decompress_(compression.buffer, 0, compressedLength);
+		assertNotNull(decompressed);
+		return decompressed;
+	}
+
+	@Test
+	public void repetitiveInputRoundTrips() {
+		final IoTCompression compression = new IoTCompression();
+		final byte[] src = new byte[IoTMessage.MaxPayloadLength];
+		for (int i = 0; i < src.length; i++)
+			src[i] = (byte)(i % 37);
+		assertArrayEquals(src, roundTrip(compression, src, 0, src.length));
+	}
+
+	@Test
+	public void runsRoundTrip() {
+		final IoTCompression compression = new IoTCompression();
+		final byte[] src = new byte[1000];
+		Arrays.fill(src, 0, 500, (byte)7);
+		Arrays.fill(src, 500, 1000, (byte)-1);
+		assertArrayEquals(src, roundTrip(compression, src, 0, src.length));
+	}
+
+	@Test
+	public void inputWithOffsetRoundTrips() {
+		final IoTCompression compression = new IoTCompression();
+		final byte[] src = new byte[600];
+		for (int i = 0; i < src.length; i++)
+			src[i] = (byte)((i & 15) == 0 ? i : 'a');
+		final byte[] decompressed = roundTrip(compression, src, 50, 500);
+		assertArrayEquals(Arrays.copyOfRange(src, 50, 550), decompressed);
+	}
+
+	@Test
+	public void tableIsReusedAcrossCalls() {
+		final IoTCompression compression = new IoTCompression();
+		final Random random = new Random(1);
+		for (int n = 0; n < 100; n++) {
+			final byte[] src = new byte[IoTCompression.MinPayloadLength + random.nextInt(1000)];
+			for (int i = 0; i < src.length; i++)
+				src[i] = (byte)random.nextInt(4);
+			assertArrayEquals(src, roundTrip(compression, src, 0, src.length));
+		}
+	}
+
+	@Test
+	public void incompressibleInputIsNotCompressed() {
+		final IoTCompression compression = new IoTCompression();
+		final byte[] src = new byte[1024];
+		new Random(2).nextBytes(src);
+		assertEquals(-1, compression.compress_(src, 0, src.length));
+	}
+
+	@Test
+	public void smallInputIsNotCompressed() {
+		final IoTCompression compression = new IoTCompression();
+		final byte[] src = new byte[IoTCompression.MinPayloadLength - 1];
+		assertEquals(-1, compression.compress_(src, 0, src.length));
+	}
+
+	@Test
+	public void corruptInputIsRejected() {
+		final IoTCompression compression = new IoTCompression();
+		final byte[] src = new byte[512];
+		Arrays.fill(src, (byte)'x');
+		final int compressedLength = compression.compress_(src, 0, src.length);
+		assertTrue(compressedLength > 0);
+		// Wrong uncompressed length
+		final byte[] corrupt = Arrays.copyOf(compression.buffer, compressedLength);
+		corrupt[0]++;
+		assertNull(IoTCompression.decompress_(corrupt, 0, corrupt.length));
+		// Truncated data
+		assertNull(IoTCompression.decompress_(compression.buffer, 0, compressedLength - 1));
+	}
+}
@@ -0,0 +1,98 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IoTDeviceTest {
+	@Test
+	public void propertyIndicesAreDenseAndStable() {
+		final IoTDevice device = IoTTestDevices.device(3);
+		// Interfaces can be described in any order
+		final IoTInterface second = IoTTestDevices.sensor(device, 1, 3);
+		assertEquals(-1, device.propertyIndex(0, 0));
+		assertEquals(0, device.propertyIndex(1, 0));
+		assertEquals(2, device.propertyIndex(second.property(2)));
+		assertNull(device.propertyAt(3));
+		final IoTInterface first = IoTTestDevices.sensor(device, 0, 2);
+		final IoTInterface third = IoTTestDevices.sensor(device, 2, 1);
+		// The indices assigned before do not change
+		assertEquals(2, device.propertyIndex(second.property(2)));
+		assertEquals(3, device.propertyIndex(first.property(0)));
+		assertEquals(5, device.propertyIndex(2, 0));
+		assertSame(first.property(1), device.propertyAt(4));
+		assertSame(third.property(0), device.propertyAt(5));
+		assertNull(device.propertyAt(6));
+		assertNull(device.propertyAt(-1));
+	}
+
+	@Test
+	public void conflatedChangesKeepOnlyTheLatestValue() {
+		final IoTDevice device = IoTTestDevices.device(1);
+		final IoTInterface ioTInterface = IoTTestDevices.sensor(device, 0, 2);
+		final ArrayList<IoTProperty> changedProperties = new ArrayList<>();
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(64);
+		IoTTestDevices.writeIntRecord(outputStream, 0, 0, 1);
+		IoTTestDevices.writeIntRecord(outputStream, 0, 1, 2);
+		// Records of unknown properties are skipped
+		IoTTestDevices.writeIntRecord(outputStream, 0, 2, 3);
+		IoTTestDevices.writeIntRecord(outputStream, 1, 0, 4);
+		byte[] payload = outputStream.toByteArray();
+		device.storePropertyChange_(payload, payload.length, changedProperties);
+		outputStream.reset();
+		IoTTestDevices.writeIntRecord(outputStream, 0, 0, 5);
+		payload = outputStream.toByteArray();
+		device.storePropertyChange_(payload, payload.length, changedProperties);
+		assertEquals(2, changedProperties.size());
+		assertSame(ioTInterface.property(0), changedProperties.get(0));
+		assertTrue(ioTInterface.property(0).conflatedChangePending);
+		assertEquals(5, ioTInterface.property(0).getValueInt());
+		assertEquals(2, ioTInterface.property(1).getValueInt());
+	}
+
+	@Test
+	public void truncatedRecordsAreIgnored() {
+		final IoTDevice device = IoTTestDevices.device(1);
+		final IoTInterface ioTInterface = IoTTestDevices.sensor(device, 0, 1);
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(64);
+		IoTTestDevices.writeIntRecord(outputStream, 0, 0, 9);
+		final byte[] payload = outputStream.toByteArray();
+		device.storePropertyChange_(payload, payload.length - 1, null);
+		assertEquals(0, ioTInterface.property(0).getValueInt());
+	}
+}
@@ -0,0 +1,201 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IoTDiscoveryCacheTest {
+	private File directory;
+	private IoTDiscoveryCache cache;
+	private byte[] queryDevice;
+
+	@Before
+	public void setUp() {
+		directory = new File(System.getProperty("java.io.tmpdir"), "IoTDiscoveryCacheTest" + System.nanoTime());
+		cache = new IoTDiscoveryCache(directory);
+		queryDevice = IoTTestDevices.queryDevice(IoTInterface.TypeSensor, IoTInterface.TypeSensor);
+	}
+
+	private static byte[] record(int messageType, byte[] payload, int payloadLength) {
+		final byte[] record = new byte[1 + payloadLength];
+		record[0] = (byte)messageType;
+		System.arraycopy(payload, 0, record, 1, payloadLength);
+		return record;
+	}
+
+	private void save(long descriptionHash) {
+		final ArrayList<byte[]> records = new ArrayList<>();
+		records.add(record(IoTMessage.MessageQueryDevice, queryDevice, IoTDiscoveryCache.queryDevicePrefixLength(queryDevice, queryDevice.length)));
+		final byte[] sensor0 = IoTTestDevices.describeSensor(0, "Sensor0", 2);
+		final byte[] sensor1 = IoTTestDevices.describeSensor(1, "Sensor1", 1);
+		records.add(record(IoTMessage.MessageDescribeInterface, sensor0, sensor0.length));
+		records.add(record(IoTMessage.MessageDescribeInterface, sensor1, sensor1.length));
+		final IoTDevice device = IoTTestDevices.device(2);
+		device.descriptionHash = descriptionHash;
+		cache.save_(device, records);
+	}
+
+	private IoTDevice load(long descriptionHash) {
+		final IoTDevice device = IoTTestDevices.device(2);
+		device.descriptionHash = descriptionHash;
+		return (cache.load_(new IoTMessage.NameCache(), device, queryDevice, queryDevice.length) ? device : null);
+	}
+
+	private File file() {
+		return new File(directory, IoTTestDevices.Uuid.toString());
+	}
+
+	private void cleanUp() {
+		cache.clear();
+		directory.delete();
+	}
+
+	@Test
+	public void savedDescriptionLoadsBack() {
+		try {
+			save(0x12345678L);
+			final IoTDevice device = load(0x12345678L);
+			assertNotNull(device);
+			assertEquals("Sensor0", device.ioTInterface(0).name);
+			assertEquals("Sensor1", device.ioTInterface(1).name);
+			assertEquals(2, device.ioTInterface(0).propertyCount());
+			final IoTProperty property = device.ioTInterface(0).property(1);
+			assertEquals("Sensor01", property.name);
+			assertEquals(IoTProperty.ModeReadWrite, property.mode);
+			assertEquals(IoTProperty.DataTypeS32, property.dataType);
+			// The records are kept, so the device can be used as a template
+			assertEquals(3, device.takeDiscoveryRecords_().size());
+		} finally {
+			cleanUp();
+		}
+	}
+
+	@Test
+	public void differentDescriptionHashIsNotLoaded() {
+		try {
+			save(1);
+			assertNull(load(2));
+			assertNull(load(IoTDevice.NoDescriptionHash));
+		} finally {
+			cleanUp();
+		}
+	}
+
+	@Test
+	public void differentInterfaceTypesAreNotLoaded() {
+		try {
+			save(1);
+			queryDevice = IoTTestDevices.queryDevice(IoTInterface.TypeSensor, IoTInterface.TypeOnOff);
+			assertNull(load(1));
+		} finally {
+			cleanUp();
+		}
+	}
+
+	@Test
+	public void expiredDescriptionWithoutHashIsNotLoaded() {
+		try {
+			save(IoTDevice.NoDescriptionHash);
+			assertNotNull(load(IoTDevice.NoDescriptionHash));
+			cache.setMaximumAge(0);
+			assertNull(load(IoTDevice.NoDescriptionHash));
+		} finally {
+			cleanUp();
+		}
+	}
+
+	@Test
+	public void corruptedFileIsNotLoaded() throws Exception {
+		try {
+			save(1);
+			final RandomAccessFile file = new RandomAccessFile(file(), "rw");
+			try {
+				// Flip one bit in the middle of the records
+				file.seek(file.length() / 2);
+				final int b = file.read();
+				file.seek(file.length() / 2);
+				file.write(b ^ 0x10);
+			} finally {
+				file.close();
+			}
+			assertNull(load(1));
+		} finally {
+			cleanUp();
+		}
+	}
+
+	@Test
+	public void truncatedFileIsNotLoaded() throws Exception {
+		try {
+			save(1);
+			final RandomAccessFile file = new RandomAccessFile(file(), "rw");
+			try {
+				file.setLength(file.length() - 5);
+			} finally {
+				file.close();
+			}
+			assertNull(load(1));
+			assertTrue(file().delete());
+			assertNull(load(1));
+		} finally {
+			cleanUp();
+		}
+	}
+
+	@Test
+	public void garbageFileIsNotLoaded() throws Exception {
+		try {
+			save(1);
+			final byte[] garbage = new byte[100];
+			Arrays.fill(garbage, (byte)0x5A);
+			final RandomAccessFile file = new RandomAccessFile(file(), "rw");
+			try {
+				file.setLength(0);
+				file.write(garbage);
+			} finally {
+				file.close();
+			}
+			assertNull(load(1));
+		} finally {
+			cleanUp();
+		}
+	}
+}
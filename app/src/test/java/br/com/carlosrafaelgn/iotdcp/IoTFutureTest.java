@@ -0,0 +1,138 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoTFutureTest {
+	@Test
+	public void completesOnlyOnce() {
+		final IoTFuture future = new IoTFuture(null);
+		assertEquals(IoTFuture.ResultPending, future.result());
+		assertTrue(future.complete_(IoTMessage.ResponseOK));
+		assertFalse(future.complete_(IoTFuture.ResultTimeout));
+		assertEquals(IoTMessage.ResponseOK, future.result());
+		assertTrue(future.isSuccessful());
+	}
+
+	@Test
+	public void listenersAreCalledOnce() {
+		final IoTFuture future = new IoTFuture(null);
+		final int[] calls = new int[1];
+		final IoTFuture.Listener listener = new IoTFuture.Listener() {
+			@Override
+			public void onComplete(IoTFuture future) {
+				calls[0]++;
+			}
+		};
+		future.addListener(listener).addListener(listener);
+		future.complete_(IoTMessage.ResponseOK);
+		future.complete_(IoTMessage.ResponseOK);
+		assertEquals(2, calls[0]);
+		// Listeners added after completion are called right away
+		future.addListener(listener);
+		assertEquals(3, calls[0]);
+	}
+
+	@Test
+	public void completeWithFollowsTheOtherFuture() {
+		final IoTFuture replaced = new IoTFuture(null), newer = new IoTFuture(null);
+		replaced.completeWith_(newer);
+		assertEquals(IoTFuture.ResultPending, replaced.result());
+		newer.complete_(IoTMessage.ResponseDeviceError);
+		assertEquals(IoTMessage.ResponseDeviceError, replaced.result());
+	}
+
+	@Test
+	public void completeWithAlreadyCompletedFuture() {
+		final IoTFuture replaced = new IoTFuture(null), newer = new IoTFuture(null);
+		newer.complete_(IoTMessage.ResponseOK);
+		replaced.completeWith_(newer);
+		assertEquals(IoTMessage.ResponseOK, replaced.result());
+	}
+
+	@Test
+	public void completeWithChains() {
+		// A request replaced twice must still complete with the result of the last one
+		final IoTFuture first = new IoTFuture(null), second = new IoTFuture(null), third = new IoTFuture(null);
+		first.completeWith_(second);
+		second.completeWith_(third);
+		third.complete_(IoTFuture.ResultTimeout);
+		assertEquals(IoTFuture.ResultTimeout, second.result());
+		assertEquals(IoTFuture.ResultTimeout, first.result());
+	}
+
+	@Test
+	public void allSucceedsOnlyAfterEveryFuture() {
+		final IoTFuture a = new IoTFuture(null), b = new IoTFuture(null);
+		final IoTFuture all = IoTFuture.all(a, b);
+		a.complete_(IoTMessage.ResponseOK);
+		assertEquals(IoTFuture.ResultPending, all.result());
+		b.complete_(IoTMessage.ResponseOK);
+		assertEquals(IoTMessage.ResponseOK, all.result());
+	}
+
+	@Test
+	public void allFailsWithTheFirstFailure() {
+		final IoTFuture a = new IoTFuture(null), b = new IoTFuture(null), c = new IoTFuture(null);
+		final IoTFuture all = IoTFuture.all(a, b, c);
+		b.complete_(IoTFuture.ResultNotSent);
+		assertEquals(IoTFuture.ResultNotSent, all.result());
+		a.complete_(IoTFuture.ResultTimeout);
+		c.complete_(IoTMessage.ResponseOK);
+		assertEquals(IoTFuture.ResultNotSent, all.result());
+	}
+
+	@Test
+	public void allOfNothingSucceeds() {
+		assertEquals(IoTMessage.ResponseOK, IoTFuture.all().result());
+	}
+
+	@Test
+	public void awaitTimesOutAndCanBeCalledAgain() throws Exception {
+		final IoTFuture future = new IoTFuture(null);
+		assertFalse(future.await(TimeUnit.MILLISECONDS.toNanos(10)));
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				future.complete_(IoTMessage.ResponseOK);
+			}
+		});
+		thread.start();
+		assertEquals(IoTMessage.ResponseOK, (int)future.get());
+		thread.join();
+	}
+}
@@ -0,0 +1,126 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoTSceneTest {
+	// Scenes created without a client only accept members of devices without a client
+	private static IoTInterface sensor(int propertyCount) {
+		return IoTTestDevices.sensor(IoTTestDevices.device(1), 0, propertyCount);
+	}
+
+	private static int memberValue(IoTScene scene, int member) {
+		final IoTProperty.Buffer value = scene.value_(member);
+		assertEquals(4, value.length);
+		return ByteBuffer.wrap(value.bytes()).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+	}
+
+	@Test
+	public void membersKeepTheValueTheyWereAddedWith() {
+		final IoTProperty property = sensor(1).property(0);
+		final IoTScene scene = new IoTScene(null);
+		scene.setValueInt(property, 5);
+		property.storeValueInt(7);
+		assertEquals(5, memberValue(scene, 0));
+		assertEquals(7, property.getValueInt());
+	}
+
+	@Test
+	public void addingAPropertyAgainReplacesItsValue() {
+		final IoTInterface ioTInterface = sensor(2);
+		final IoTScene scene = new IoTScene(null);
+		scene.setValueInt(ioTInterface.property(0), 1);
+		scene.setValueInt(ioTInterface.property(1), 2);
+		scene.setValueInt(ioTInterface.property(0), 3);
+		assertEquals(2, scene.memberCount());
+		assertEquals(3, memberValue(scene, 0));
+		assertEquals(2, memberValue(scene, 1));
+	}
+
+	@Test
+	public void memberFinishedReportsOnlyTheLastMember() {
+		final IoTInterface ioTInterface = sensor(1);
+		final IoTScene scene = new IoTScene(null);
+		scene.addExecute(ioTInterface, 1).addExecute(ioTInterface, 2).setValueInt(ioTInterface.property(0), 3);
+		// Nothing is running yet
+		assertFalse(scene.memberFinished_(0, IoTMessage.ResponseOK));
+		assertEquals(3, scene.begin_(IoTScene.DefaultMaximumConcurrency, null, 0));
+		assertTrue(scene.isRunning());
+		assertFalse(scene.memberFinished_(1, IoTMessage.ResponseOK));
+		// A late result (a timeout after the response, for example) is ignored
+		assertFalse(scene.memberFinished_(1, IoTScene.ResultTimeout));
+		assertFalse(scene.memberFinished_(0, IoTScene.ResultNotSent));
+		assertEquals(IoTScene.ResultPending, scene.result(2));
+		assertTrue(scene.memberFinished_(2, IoTMessage.ResponseOK));
+		assertEquals(IoTScene.ResultNotSent, scene.result(0));
+		assertEquals(IoTMessage.ResponseOK, scene.result(1));
+		assertEquals(2, scene.succeededCount());
+		assertFalse(scene.memberFinished_(2, IoTMessage.ResponseOK));
+		scene.finished_();
+		assertFalse(scene.isRunning());
+	}
+
+	@Test
+	public void beginResetsThePreviousResults() {
+		final IoTScene scene = new IoTScene(null);
+		scene.addExecute(sensor(1), 1);
+		scene.begin_(1, null, 0);
+		assertTrue(scene.memberFinished_(0, IoTMessage.ResponseOK));
+		scene.finished_();
+		scene.begin_(1, null, 0);
+		assertEquals(IoTScene.ResultPending, scene.result(0));
+		assertTrue(scene.memberFinished_(0, IoTScene.ResultTimeout));
+		assertEquals(0, scene.succeededCount());
+	}
+
+	@Test
+	public void runningScenesCannotBeChanged() {
+		final IoTInterface ioTInterface = sensor(1);
+		final IoTScene scene = new IoTScene(null);
+		scene.addExecute(ioTInterface, 1);
+		scene.begin_(1, null, 0);
+		try {
+			scene.setValueInt(ioTInterface.property(0), 1);
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		assertEquals(1, scene.memberCount());
+	}
+}
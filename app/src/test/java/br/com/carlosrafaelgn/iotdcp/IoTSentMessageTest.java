@@ -0,0 +1,96 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IoTSentMessageTest {
+	// The placeholder filled in by the client thread, when a response to sentMessage arrives
+	// (describeInterface_() messages always use MaximumSequenceNumber)
+	private static IoTSentMessage placeholder(IoTSentMessage.Cache cache, IoTSentMessage sentMessage) {
+		final IoTSentMessage placeholder = cache.placeholder_(sentMessage.socketAddress);
+		placeholder.fillPlaceholder_(sentMessage.socketAddress, sentMessage.messageType, IoTMessage.MaximumSequenceNumber, new byte[] { (byte)sentMessage.payload0 });
+		return placeholder;
+	}
+
+	@Test
+	public void onlyOneClaimSucceeds() {
+		final IoTSentMessage.Cache cache = new IoTSentMessage.Cache();
+		final IoTSentMessage sentMessage = cache.describeInterface_(IoTTestDevices.device(2), 1);
+		assertFalse(cache.claim_(sentMessage));
+		cache.markAsSentMessage_(sentMessage);
+		assertTrue(cache.isWaitingForResponses());
+		assertTrue(cache.claim_(sentMessage));
+		assertFalse(cache.claim_(sentMessage));
+		assertFalse(cache.isWaitingForResponses());
+	}
+
+	@Test
+	public void responseClaimsTheMatchingMessage() {
+		final IoTSentMessage.Cache cache = new IoTSentMessage.Cache();
+		final IoTDevice device = IoTTestDevices.device(2);
+		final IoTSentMessage first = cache.describeInterface_(device, 0);
+		final IoTSentMessage second = cache.describeInterface_(device, 1);
+		cache.markAsSentMessage_(first);
+		cache.markAsSentMessage_(second);
+		assertSame(second, cache.claimActualSentMessage_(placeholder(cache, second)));
+		// Duplicated responses find nothing
+		assertNull(cache.claimActualSentMessage_(placeholder(cache, second)));
+		// A timeout can no longer finish the message already claimed by its response
+		assertFalse(cache.claim_(second));
+		assertTrue(cache.claim_(first));
+	}
+
+	@Test
+	public void retriesOfFinishedMessagesAreDiscarded() throws Exception {
+		final IoTSentMessage.Cache cache = new IoTSentMessage.Cache();
+		final IoTSentMessage sentMessage = cache.describeInterface_(IoTTestDevices.device(1), 0);
+		cache.markAsSentMessage_(sentMessage);
+		final int generation = cache.prepareRetry_(sentMessage, 0);
+		assertTrue(generation >= 0);
+		assertEquals(1, sentMessage.attempts);
+		assertTrue(cache.claim_(sentMessage));
+		assertEquals(-1, cache.prepareRetry_(sentMessage, 0));
+		cache.release_(sentMessage);
+		// The message is reused, but the retry prepared before must not be sent
+		final IoTSentMessage reused = cache.describeInterface_(IoTTestDevices.device(1), 0);
+		assertSame(sentMessage, reused);
+		cache.markAsSentMessage_(reused);
+		assertFalse(cache.buildRetry_(reused, generation, new DatagramPacket(new byte[0], 0), new byte[0], null));
+	}
+}
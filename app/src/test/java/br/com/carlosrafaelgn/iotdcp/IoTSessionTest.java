@@ -0,0 +1,211 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoTSessionTest {
+	private static final byte[] Password = { 'p', 'a', 's', 's' };
+	private static final int ClientId = 3;
+	private static final int HeaderLength = 8;
+
+	// Device side of the session, implemented independently, following the description in IoTSession
+	private static final class Device {
+		final byte[] nonce = new byte[IoTSession.NonceLength];
+		private final byte[] salt;
+		private final Cipher cipher;
+		private final Mac mac;
+		private int counter;
+
+		Device(byte[] clientNonce) throws Exception {
+			new Random(4).nextBytes(nonce);
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(Password, "HmacSHA256"));
+			mac.update(clientNonce);
+			mac.update(nonce);
+			mac.update((byte)ClientId);
+			final byte[] prk = mac.doFinal();
+			salt = Arrays.copyOfRange(prk, 16, 23);
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(prk, 0, 16, "AES"));
+			mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+			mac.update((byte)1);
+			final byte[] macKey = mac.doFinal();
+			this.mac = Mac.getInstance("HmacSHA256");
+			this.mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+		}
+
+		private void xor(int direction, int counter, byte[] buffer, int offset, int length) throws Exception {
+			final byte[] block = new byte[16];
+			System.arraycopy(salt, 0, block, 0, 7);
+			block[7] = (byte)direction;
+			block[8] = (byte)(counter >>> 24);
+			block[9] = (byte)(counter >>> 16);
+			block[10] = (byte)(counter >>> 8);
+			block[11] = (byte)counter;
+			for (int blockIndex = 0; length > 0; blockIndex++) {
+				block[15] = (byte)blockIndex;
+				final byte[] keyStream = cipher.doFinal(block);
+				for (int i = 0; i < 16 && length > 0; i++, length--)
+					buffer[offset++] ^= keyStream[i];
+			}
+		}
+
+		private byte[] tag(byte[] packet, int payloadLength) {
+			mac.update(packet, 1, 5);
+			mac.update(packet, HeaderLength, payloadLength);
+			return Arrays.copyOf(mac.doFinal(), 16);
+		}
+
+		// Returns the plaintext of a request encrypted by the client
+		byte[] decryptRequest(byte[] packet, int payloadLength) throws Exception {
+			final int ciphertextLength = payloadLength - IoTSession.Overhead;
+			assertArrayEquals(tag(packet, 4 + ciphertextLength), Arrays.copyOfRange(packet, HeaderLength + 4 + ciphertextLength, HeaderLength + payloadLength));
+			final int counter = ((packet[HeaderLength] & 0xFF) << 24) | ((packet[HeaderLength + 1] & 0xFF) << 16) | ((packet[HeaderLength + 2] & 0xFF) << 8) | (packet[HeaderLength + 3] & 0xFF);
+			final byte[] plaintext = Arrays.copyOfRange(packet, HeaderLength + 4, HeaderLength + 4 + ciphertextLength);
+			xor(0, counter, plaintext, 0, plaintext.length);
+			return plaintext;
+		}
+
+		// Returns a response packet with the given payload, encrypted
+		byte[] encryptResponse(byte[] payload) throws Exception {
+			final byte[] packet = new byte[HeaderLength + payload.length + IoTSession.Overhead];
+			packet[1] = (byte)(IoTMessage.MessageFlagEncrypted | 5);
+			packet[2] = (byte)ClientId;
+			final int counter = this.counter++;
+			packet[HeaderLength] = (byte)(counter >>> 24);
+			packet[HeaderLength + 1] = (byte)(counter >>> 16);
+			packet[HeaderLength + 2] = (byte)(counter >>> 8);
+			packet[HeaderLength + 3] = (byte)counter;
+			System.arraycopy(payload, 0, packet, HeaderLength + 4, payload.length);
+			xor(1, counter, packet, HeaderLength + 4, payload.length);
+			System.arraycopy(tag(packet, 4 + payload.length), 0, packet, HeaderLength + 4 + payload.length, 16);
+			return packet;
+		}
+	}
+
+	private IoTSession session;
+	private Device device;
+
+	@Before
+	public void setUp() throws Exception {
+		session = new IoTSession();
+		device = new Device(session.clientNonce);
+		assertTrue(session.establish_(Password, ClientId, device.nonce, 0));
+	}
+
+	@Test
+	public void requestsCanBeDecryptedByTheDevice() throws Exception {
+		final byte[] payload = new byte[100];
+		new Random(5).nextBytes(payload);
+		for (int n = 0; n < 3; n++) {
+			final byte[] packet = new byte[HeaderLength + payload.length + IoTSession.Overhead];
+			packet[1] = (byte)(IoTMessage.MessageFlagEncrypted | 5);
+			packet[2] = (byte)ClientId;
+			System.arraycopy(payload, 0, packet, HeaderLength, payload.length);
+			final int payloadLength = session.encrypt_(packet, HeaderLength, payload.length);
+			assertEquals(payload.length + IoTSession.Overhead, payloadLength);
+			assertFalse(Arrays.equals(payload, Arrays.copyOfRange(packet, HeaderLength + 4, HeaderLength + 4 + payload.length)));
+			assertArrayEquals(payload, device.decryptRequest(packet, payloadLength));
+		}
+	}
+
+	@Test
+	public void responsesRoundTrip() throws Exception {
+		final byte[] payload = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 };
+		final byte[] packet = device.encryptResponse(payload);
+		assertEquals(payload.length, session.decrypt_(packet, HeaderLength, payload.length + IoTSession.Overhead));
+		assertArrayEquals(payload, Arrays.copyOfRange(packet, HeaderLength, HeaderLength + payload.length));
+	}
+
+	@Test
+	public void tamperedResponsesAreRejected() throws Exception {
+		final byte[] payload = new byte[40];
+		// Ciphertext
+		byte[] packet = device.encryptResponse(payload);
+		packet[HeaderLength + 10] ^= 1;
+		assertEquals(-1, session.decrypt_(packet, HeaderLength, payload.length + IoTSession.Overhead));
+		// Tag
+		packet = device.encryptResponse(payload);
+		packet[packet.length - 1] ^= 1;
+		assertEquals(-1, session.decrypt_(packet, HeaderLength, payload.length + IoTSession.Overhead));
+		// Authenticated header
+		packet = device.encryptResponse(payload);
+		packet[2] ^= 1;
+		assertEquals(-1, session.decrypt_(packet, HeaderLength, payload.length + IoTSession.Overhead));
+		// Untouched
+		packet = device.encryptResponse(payload);
+		assertEquals(payload.length, session.decrypt_(packet, HeaderLength, payload.length + IoTSession.Overhead));
+	}
+
+	@Test
+	public void replayedResponsesAreRejected() throws Exception {
+		final byte[] payload = new byte[8];
+		final byte[] packet = device.encryptResponse(payload);
+		final byte[] copy = packet.clone();
+		assertEquals(payload.length, session.decrypt_(packet, HeaderLength, payload.length + IoTSession.Overhead));
+		assertEquals(-1, session.decrypt_(copy, HeaderLength, payload.length + IoTSession.Overhead));
+	}
+
+	@Test
+	public void sessionsAreNotEstablishedWithoutPassword() throws Exception {
+		assertFalse(new IoTSession().establish_(null, ClientId, device.nonce, 0));
+		assertFalse(new IoTSession().establish_(new byte[0], ClientId, device.nonce, 0));
+	}
+
+	@Test
+	public void encryptedFlagIsAuthenticated() throws Exception {
+		final byte[] packet = device.encryptResponse(new byte[8]);
+		packet[1] &= ~IoTMessage.MessageFlagEncrypted;
+		assertEquals(-1, session.decrypt_(packet, HeaderLength, 8 + IoTSession.Overhead));
+	}
+
+	@Test
+	public void sessionsWithDifferentPasswordsDoNotMatch() throws Exception {
+		final IoTSession other = new IoTSession();
+		System.arraycopy(session.clientNonce, 0, other.clientNonce, 0, IoTSession.NonceLength);
+		assertTrue(other.establish_(new byte[] { 'x' }, ClientId, device.nonce, 0));
+		final byte[] packet = device.encryptResponse(new byte[8]);
+		assertEquals(-1, other.decrypt_(packet, HeaderLength, 8 + IoTSession.Overhead));
+	}
+}
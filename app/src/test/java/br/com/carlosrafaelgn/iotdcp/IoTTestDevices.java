@@ -0,0 +1,112 @@
+//
+// IoTDCPJava is distributed under the FreeBSD License
+//
+// Copyright (c) 2017, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+//
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// https://github.com/carlosrafaelgn/IoTDCPJava
+//
+package br.com.carlosrafaelgn.iotdcp;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+// Builds devices (without a client) and the payloads that describe them, as sent by a device
+final class IoTTestDevices {
+	static final UUID CategoryUuid = new UUID(0x0102030405060708L, 0x090A0B0C0D0E0F10L);
+	static final UUID Uuid = new UUID(0x1112131415161718L, 0x191A1B1C1D1E1F20L);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private IoTTestDevices() {
+	}
+
+	private static void writeLong(ByteArrayOutputStream outputStream, long value) {
+		for (int i = 0; i < 8; i++)
+			outputStream.write((int)(value >>> (i << 3)));
+	}
+
+	private static void writeName(ByteArrayOutputStream outputStream, String name) {
+		final byte[] bytes = name.getBytes(UTF8);
+		outputStream.write(bytes.length);
+		outputStream.write(bytes, 0, bytes.length);
+	}
+
+	// flags, category, uuid, interface types, name (everything but the description hash)
+	static byte[] queryDevice(int... interfaceTypes) {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(64);
+		outputStream.write(0);
+		writeLong(outputStream, CategoryUuid.getLeastSignificantBits());
+		writeLong(outputStream, CategoryUuid.getMostSignificantBits());
+		writeLong(outputStream, Uuid.getLeastSignificantBits());
+		writeLong(outputStream, Uuid.getMostSignificantBits());
+		outputStream.write(interfaceTypes.length);
+		for (int interfaceType : interfaceTypes)
+			outputStream.write(interfaceType);
+		writeName(outputStream, "Device");
+		return outputStream.toByteArray();
+	}
+
+	// A sensor interface with propertyCount read/write DataTypeS32 properties
+	static byte[] describeSensor(int interfaceIndex, String name, int propertyCount) {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(64);
+		outputStream.write(interfaceIndex);
+		writeName(outputStream, name);
+		outputStream.write(IoTInterface.TypeSensor);
+		outputStream.write(propertyCount);
+		for (int i = 0; i < propertyCount; i++) {
+			writeName(outputStream, name + i);
+			outputStream.write(IoTProperty.ModeReadWrite);
+			outputStream.write(IoTProperty.DataTypeS32);
+			outputStream.write(1);
+			outputStream.write(IoTProperty.UnitOne);
+			outputStream.write(IoTProperty.UnitOne);
+			outputStream.write(0);
+		}
+		return outputStream.toByteArray();
+	}
+
+	static IoTDevice device(int interfaceCount) {
+		return new IoTDevice(null, new InetSocketAddress("127.0.0.1", 2570), 0, CategoryUuid, Uuid, "Device", new IoTInterface[interfaceCount]);
+	}
+
+	static IoTInterface sensor(IoTDevice device, int interfaceIndex, int propertyCount) {
+		final byte[] payload = describeSensor(interfaceIndex, "Sensor" + interfaceIndex, propertyCount);
+		final IoTInterface ioTInterface = IoTMessage.parseDescribeInterface_(new IoTMessage.NameCache(), device, payload, payload.length);
+		device.ioTInterfaceDiscovered_(ioTInterface, false);
+		return ioTInterface;
+	}
+
+	// A record, as carried by MessageGetProperty responses and ServerMessagePropertyChange
+	static void writeIntRecord(ByteArrayOutputStream outputStream, int interfaceIndex, int propertyIndex, int value) {
+		outputStream.write(interfaceIndex);
+		outputStream.write(propertyIndex);
+		outputStream.write(4);
+		outputStream.write(0);
+		for (int i = 0; i < 4; i++)
+			outputStream.write(value >>> (i << 3));
+	}
+}